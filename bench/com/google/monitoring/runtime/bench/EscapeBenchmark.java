@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that a small array which never leaves the method allocating it is
+ * still eliminated by the JIT once the method is instrumented.  Run it with
+ * and without the agent, and with {@code noEscape=true}, and compare the
+ * bytes allocated per iteration:
+ *
+ * <pre>
+ * javac -d /tmp/bench bench/com/google/monitoring/runtime/bench/EscapeBenchmark.java
+ * java -cp /tmp/bench com.google.monitoring.runtime.bench.EscapeBenchmark
+ * java -javaagent:allocationtracer.jar=print=false \
+ *     -cp /tmp/bench com.google.monitoring.runtime.bench.EscapeBenchmark
+ * java -javaagent:allocationtracer.jar=print=false,noEscape=true \
+ *     -cp /tmp/bench com.google.monitoring.runtime.bench.EscapeBenchmark
+ * </pre>
+ *
+ * <p>Without {@code noEscape=true} every array is passed to the recorder, so
+ * each iteration allocates it.  With it, the array is scalar replaced once C2
+ * compiles {@link #work}, and the count falls back to zero.
+ * {@code print=false} keeps the agent from writing every allocation to
+ * stderr.  On a debug JVM, {@code -XX:+UnlockDiagnosticVMOptions
+ * -XX:+PrintEliminateAllocations} shows the eliminated allocation directly.
+ *
+ * <p>This is not part of the build, and needs a JVM with
+ * {@code com.sun.management.ThreadMXBean}.  It lives outside the agent's
+ * package because the agent never instruments its own classes.
+ */
+public class EscapeBenchmark {
+  private static final int ITERATIONS = 50000000;
+  private static final int ROUNDS = 5;
+
+  static int work(int i) {
+    int[] a = new int[4];
+    a[0] = i;
+    a[1] = i + 1;
+    a[2] = i * 2;
+    a[3] = i ^ 7;
+    return a[0] + a[1] + a[2] + a[3];
+  }
+
+  static long loop() {
+    long sum = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      sum += work(i);
+    }
+    return sum;
+  }
+
+  static long collections() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  public static void main(String[] args) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    // Warm up, so that work() is compiled by C2 before it is measured.
+    long sum = loop();
+    for (int r = 0; r < ROUNDS; r++) {
+      long gcs = collections();
+      long bytes = threads.getThreadAllocatedBytes(id);
+      long start = System.nanoTime();
+      sum += loop();
+      long ns = System.nanoTime() - start;
+      bytes = threads.getThreadAllocatedBytes(id) - bytes;
+      gcs = collections() - gcs;
+      System.out.printf("round %d: %.2f bytes/op, %.2f ns/op, %d GCs%n",
+          r, (double) bytes / ITERATIONS, (double) ns / ITERATIONS, gcs);
+    }
+    // Keeps the loop from being removed as dead code.
+    System.out.println("checksum " + sum);
+  }
+}
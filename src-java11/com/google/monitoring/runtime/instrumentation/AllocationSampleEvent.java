@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingControl;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+
+import java.util.Set;
+
+/**
+ * The JFR event emitted for each allocation recorded by the agent.  Besides
+ * the usual enabled and stackTrace settings, a recording can set
+ * {@code minBytes} to only keep allocations of at least that many bytes.
+ */
+@Name("com.google.monitoring.runtime.instrumentation.AllocationSample")
+@Label("Allocation Sample")
+@Description("An allocation recorded by the allocation instrumenter")
+@Category({"Java Application", "Allocation Instrumenter"})
+@StackTrace(true)
+final class AllocationSampleEvent extends Event {
+  @Label("Object Type")
+  String type;
+
+  @Label("Count")
+  @Description("The number of array elements, or -1 if not an array")
+  int count;
+
+  @Label("Size")
+  @DataAmount
+  long bytes;
+
+  @Label("Allocation Site")
+  String site;
+
+  @Name("minBytes")
+  @Label("Minimum Size")
+  @SettingDefinition
+  protected boolean minBytes(MinBytesSetting setting) {
+    return bytes >= setting.minBytes;
+  }
+
+  /**
+   * A size threshold for the event.  When several recordings are running,
+   * the smallest of their thresholds applies.
+   */
+  public static final class MinBytesSetting extends SettingControl {
+    private volatile long minBytes;
+
+    @Override
+    public String combine(Set<String> values) {
+      long min = Long.MAX_VALUE;
+      for (String value : values) {
+        min = Math.min(min, parse(value));
+      }
+      return values.isEmpty() ? "0" : Long.toString(min);
+    }
+
+    @Override
+    public void setValue(String value) {
+      minBytes = parse(value);
+    }
+
+    @Override
+    public String getValue() {
+      return Long.toString(minBytes);
+    }
+
+    private static long parse(String value) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+  }
+}
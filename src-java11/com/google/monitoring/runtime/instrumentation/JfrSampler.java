@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.StackWalker.StackFrame;
+import java.util.Optional;
+
+/**
+ * A {@link Sampler} that emits every allocation it sees as an
+ * {@link AllocationSampleEvent}.  Created by {@link JfrSupport}.  JFR does the buffering, records the thread
+ * and the stack, and applies the event's settings, so an event that a
+ * recording doesn't want costs little more than a check of
+ * {@link AllocationSampleEvent#isEnabled()}.
+ */
+final class JfrSampler implements Sampler {
+  private static final String AGENT_PACKAGE =
+      "com.google.monitoring.runtime.instrumentation.";
+
+  private final StackWalker walker = StackWalker.getInstance();
+
+  @Override
+  public void sampleAllocation(int count, String desc, Object newObj,
+      long size) {
+    AllocationSampleEvent event = new AllocationSampleEvent();
+    if (!event.isEnabled()) {
+      return;
+    }
+    event.type = AllocationProfile.typeName(count, desc, newObj);
+    event.count = count;
+    event.bytes = size;
+    // Only look for the site once JFR has applied the event's settings.
+    if (event.shouldCommit()) {
+      event.site = findSite();
+      event.commit();
+    }
+  }
+
+  private String findSite() {
+    Optional<StackFrame> frame = walker.walk(frames -> frames
+        .filter(f -> !f.getClassName().startsWith(AGENT_PACKAGE)
+            && !f.getMethodName().startsWith("$allocation$"))
+        .findFirst());
+    return frame.isPresent() ? frame.get().toStackTraceElement().toString()
+        : "unknown";
+  }
+}
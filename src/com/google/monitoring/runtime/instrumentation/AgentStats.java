@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the agent's own work, kept when it is
+ * started with {@code stats=true}: how many classes the transformer
+ * rewrote, skipped or gave up on and how long that took, and how many
+ * allocations reached the recorder, how many it turned away and how long
+ * the ones it recorded took.  They are reported at shutdown and exported by
+ * {@link MetricsServer}.
+ *
+ * <p>The recorder's counters are updated by every allocating thread, so
+ * they are {@link StripedCounter}s.
+ * Like {@link OverheadGovernor}, the recorder only times one in 64 of the
+ * allocations it records, so the hook time is a sample.
+ */
+public final class AgentStats {
+  static volatile boolean enabled;
+
+  private static final StripedCounter transformed = new StripedCounter();
+  private static final StripedCounter filtered = new StripedCounter();
+  private static final StripedCounter fellBack = new StripedCounter();
+  private static final StripedCounter failed = new StripedCounter();
+  private static final StripedCounter bytesIn = new StripedCounter();
+  private static final StripedCounter bytesOut = new StripedCounter();
+  private static final Histogram transformNanos = new Histogram();
+  private static volatile String lastFailure;
+
+  private static final StripedCounter events = new StripedCounter();
+  private static final StripedCounter belowMinimum = new StripedCounter();
+  private static final StripedCounter reentrant = new StripedCounter();
+  private static final StripedCounter stackCaptures = new StripedCounter();
+  private static final Histogram hookNanos = new Histogram();
+
+  private AgentStats() {
+  }
+
+  /**
+   * Starts counting, and reports the counts at shutdown.
+   *
+   * @param reportPath the file to write the report to; null means stderr.
+   */
+  static void install(String reportPath) {
+    enabled = true;
+    OverheadGovernor.timing = true;
+    new ShutdownReport() {
+      @Override
+      void write(PrintStream out) {
+        report(out);
+      }
+    }.writeAtShutdown("AllocationAgentStatsReporter", reportPath);
+  }
+
+  static void classTransformed(long nanos, int originalSize, int newSize) {
+    transformed.increment();
+    transformNanos.record(nanos);
+    bytesIn.add(originalSize);
+    bytesOut.add(newSize);
+  }
+
+  static void classFiltered() {
+    filtered.increment();
+  }
+
+  static void classFellBack() {
+    fellBack.increment();
+  }
+
+  static void classFailed(String className, Throwable t) {
+    failed.increment();
+    lastFailure = (className != null ? className : "unknown class") + ": " + t;
+  }
+
+  static void event() {
+    events.increment();
+  }
+
+  static void belowMinimum() {
+    belowMinimum.increment();
+  }
+
+  static void reentrant() {
+    reentrant.increment();
+  }
+
+  static void stackCaptured() {
+    stackCaptures.increment();
+  }
+
+  static void hookTimed(long nanos) {
+    hookNanos.record(nanos);
+  }
+
+  /** The number of classes that were rewritten. */
+  public static long getClassesTransformed() {
+    return transformed.get();
+  }
+
+  /** The number of classes that the agent's filters kept from rewriting. */
+  public static long getClassesFiltered() {
+    return filtered.get();
+  }
+
+  /**
+   * The number of classes left as they were because a method would have
+   * grown past 64K.
+   */
+  public static long getClassesFellBack() {
+    return fellBack.get();
+  }
+
+  /** The number of classes that couldn't be rewritten because of an error. */
+  public static long getClassesFailed() {
+    return failed.get();
+  }
+
+  /** The class and error of the last failure, or null if there wasn't one. */
+  public static String getLastFailure() {
+    return lastFailure;
+  }
+
+  /** The total size of the classes that were rewritten, before. */
+  public static long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  /** The total size of the classes that were rewritten, after. */
+  public static long getBytesOut() {
+    return bytesOut.get();
+  }
+
+  /** The time taken to rewrite each class. */
+  public static Histogram getTransformNanos() {
+    return transformNanos;
+  }
+
+  /** The number of allocations that reached the recorder. */
+  public static long getEvents() {
+    return events.get();
+  }
+
+  /**
+   * The number of allocations turned away for being smaller than the
+   * minimum array size.
+   */
+  public static long getBelowMinimum() {
+    return belowMinimum.get();
+  }
+
+  /**
+   * The number of allocations turned away because the thread was already
+   * recording one, which are the agent's own.
+   */
+  public static long getReentrant() {
+    return reentrant.get();
+  }
+
+  /** The number of stacks captured for samplers and budgets. */
+  public static long getStackCaptures() {
+    return stackCaptures.get();
+  }
+
+  /** The time taken to record an allocation, for a sample of them. */
+  public static Histogram getHookNanos() {
+    return hookNanos;
+  }
+
+  /**
+   * Prints the counters in a human readable form.
+   */
+  public static void report(PrintStream out) {
+    double seconds =
+        ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0;
+    out.println("Allocation agent statistics after " + seconds + " s:");
+    out.println("Transformer: " + transformed.get() + " classes rewritten, " +
+        filtered.get() + " filtered out, " + fellBack.get() +
+        " left alone because of the 64K limit, " + failed.get() +
+        " failed");
+    if (lastFailure != null) {
+      out.println("  last failure: " + lastFailure);
+    }
+    out.println("  transform time: " + transformNanos);
+    long in = bytesIn.get();
+    long growth = bytesOut.get() - in;
+    out.println("  bytecode: " + in + " bytes before, " + bytesOut.get() +
+        " after (+" + growth + ", " +
+        (in == 0 ? 0 : Math.round(growth * 1000.0 / in) / 10.0) + "%)");
+    out.println("Recorder: " + events.get() + " allocations (" +
+        Math.round(events.get() / seconds) + "/s), " + belowMinimum.get() +
+        " below the minimum size, " + reentrant.get() + " reentrant, " +
+        stackCaptures.get() + " stacks captured");
+    out.println("  hook time: " + hookNanos);
+  }
+
+  /**
+   * A histogram of durations, with a bucket for each power of two
+   * nanoseconds.
+   */
+  public static final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram() {
+    }
+
+    void record(long nanos) {
+      // Bucket b holds durations below 2^b nanoseconds.
+      counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+      total.addAndGet(nanos);
+      long m;
+      while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+      }
+    }
+
+    /** The number of durations recorded. */
+    public long getCount() {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        count += counts.get(i);
+      }
+      return count;
+    }
+
+    /** The sum of the durations recorded. */
+    public long getTotalNanos() {
+      return total.get();
+    }
+
+    /** The longest duration recorded. */
+    public long getMaxNanos() {
+      return max.get();
+    }
+
+    /**
+     * The number of durations below 2^bucket nanoseconds, cumulatively.
+     */
+    public long getCountBelow(int bucket) {
+      long count = 0;
+      for (int i = 0; i <= Math.min(bucket, BUCKETS - 1); i++) {
+        count += counts.get(i);
+      }
+      return count;
+    }
+
+    /**
+     * An upper bound on the given percentile, which is within a factor of
+     * two of it.
+     */
+    public long getPercentileNanos(double percentile) {
+      long count = getCount();
+      long rank = (long) Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank && seen > 0) {
+          return Math.min(1L << i, getMaxNanos());
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      long count = getCount();
+      if (count == 0) {
+        return "none recorded";
+      }
+      return count + " recorded, mean " + micros(total.get() / count) +
+          ", p50 < " + micros(getPercentileNanos(50)) + ", p99 < " +
+          micros(getPercentileNanos(99)) + ", max " + micros(max.get());
+    }
+
+    private static String micros(long nanos) {
+      return Math.round(nanos / 100.0) / 10.0 + " us";
+    }
+  }
+}
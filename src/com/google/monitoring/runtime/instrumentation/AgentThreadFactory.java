@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the daemon threads used by the agent for its background work.
+ * Allocations made on these threads are never recorded, so that the agent's
+ * own bookkeeping doesn't show up in the profiles it produces.
+ */
+class AgentThreadFactory implements ThreadFactory {
+  private final String name;
+
+  AgentThreadFactory(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public Thread newThread(final Runnable r) {
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        AllocationRecorder.suppressRecordingOnCurrentThread();
+        r.run();
+      }
+    }, name);
+    t.setDaemon(true);
+    return t;
+  }
+}
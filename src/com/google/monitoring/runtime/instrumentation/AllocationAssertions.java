@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Assertions for tests that check that code doesn't allocate, or allocates
+ * little.  Only allocations made on the calling thread are counted.
+ *
+ * <p>The bytes allocated are measured with
+ * {@code com.sun.management.ThreadMXBean.getThreadAllocatedBytes}, so every
+ * allocation is seen, including plain {@code new}, and the agent doesn't
+ * need to be loaded.  When it is loaded, the bytes it allocates itself while
+ * recording are left out, and a failed assertion also lists each allocated
+ * type and the site that allocated it.  That list only covers what the agent
+ * records: arrays, and objects created by the calls it hooks, but not plain
+ * {@code new}.  On JVMs that can't count the bytes allocated by a thread, the
+ * agent must be loaded, and only what it records is counted.
+ *
+ * <p>The first run of code can allocate while the classes it uses are
+ * loaded and linked, so run it once before asserting on it.
+ *
+ * <pre>
+ * AllocationAssertions.assertAllocatesNothing(new Runnable() {
+ *   public void run() {
+ *     parser.parse(buffer);
+ *   }
+ * });
+ * </pre>
+ */
+public final class AllocationAssertions {
+  // Sites listed in a failure message.
+  private static final int MAX_REPORTED_SITES = 20;
+
+  // Counts the bytes allocated by threads, or null if the JVM can't.
+  private static final com.sun.management.ThreadMXBean threads =
+      threadMXBean();
+
+  private AllocationAssertions() { }
+
+  private static com.sun.management.ThreadMXBean threadMXBean() {
+    try {
+      Object bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) bean;
+        if (threads.isThreadAllocatedMemorySupported()) {
+          threads.setThreadAllocatedMemoryEnabled(true);
+          return threads;
+        }
+      }
+    } catch (LinkageError e) {
+      // No com.sun.management.
+    } catch (UnsupportedOperationException e) {
+      // Supported, but can't be enabled.
+    }
+    return null;
+  }
+
+  /**
+   * Returns the bytes allocated by the current thread so far.  Only called
+   * while an assertion is running, which requires the bean.  On JDK 8, the
+   * bean allocates two small arrays per call until it is compiled, so the
+   * callers measure and leave out the cost of a call.
+   */
+  static long threadAllocatedBytes() {
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  // Reads the bytes allocated without recording the bean's own allocations.
+  private static long read(AllocationRecorder.ThreadState state) {
+    boolean recording = state.recording;
+    state.recording = true;
+    long bytes = threadAllocatedBytes();
+    state.recording = recording;
+    return bytes;
+  }
+
+  /**
+   * Asserts that running the given code allocates nothing on this thread.
+   */
+  public static void assertAllocatesNothing(Runnable code) {
+    assertAllocatesAtMost(0, code);
+  }
+
+  /**
+   * Asserts that running the given code allocates at most the given number
+   * of bytes on this thread.
+   */
+  public static void assertAllocatesAtMost(long maxBytes, Runnable code) {
+    boolean agent = AllocationRecorder.getInstrumentation() != null;
+    if (threads == null) {
+      if (!agent) {
+        throw new IllegalStateException("This JVM can't count the bytes " +
+            "allocated by threads, and the allocation instrumenter agent " +
+            "is not loaded");
+      }
+      assertRecordedAtMost(maxBytes, code);
+      return;
+    }
+
+    AllocationRecorder.ThreadState state = AllocationRecorder.getThreadState();
+    long start = read(state);
+    long allocated = 0;
+    long readCost = 0;
+    long enclosingReadCost = state.readCost;
+    state.metered++;
+    try {
+      Collector collector = null;
+      AllocationBudget.Scope scope = null;
+      if (agent) {
+        collector = new Collector();
+        // A budget of -1 bytes is exceeded by every allocation, so the
+        // collector sees all of them.
+        scope = new AllocationBudget("assertion", -1, collector).enter();
+      }
+      long agentBytes = state.agentBytes;
+      long before = read(state);
+      readCost = read(state) - before;
+      before += readCost;
+      state.readCost = readCost;
+      try {
+        code.run();
+      } finally {
+        allocated = Math.max(0, read(state) - before - readCost
+            - (state.agentBytes - agentBytes));
+        if (scope != null) {
+          scope.close();
+        }
+      }
+      if (allocated > maxBytes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Expected at most ").append(maxBytes)
+            .append(" bytes to be allocated, but ").append(allocated)
+            .append(" bytes were allocated");
+        if (collector != null) {
+          sb.append(", of which the agent recorded ");
+          collector.describe(sb, scope);
+        }
+        throw new AssertionError(sb.toString());
+      }
+    } finally {
+      state.metered--;
+      state.readCost = enclosingReadCost;
+      // An enclosing assertion only counts the bytes allocated by the code.
+      state.agentBytes += read(state) - start + readCost - allocated;
+    }
+  }
+
+  // Counts only what the agent records.
+  private static void assertRecordedAtMost(long maxBytes, Runnable code) {
+    Collector collector = new Collector();
+    AllocationBudget budget =
+        new AllocationBudget("assertion", -1, collector);
+    AllocationBudget.Scope scope = budget.enter();
+    try {
+      code.run();
+    } finally {
+      scope.close();
+    }
+    if (scope.getUsedBytes() > maxBytes) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Expected at most ").append(maxBytes)
+          .append(" bytes to be allocated, but ");
+      collector.describe(sb, scope);
+      throw new AssertionError(sb.toString());
+    }
+  }
+
+  /**
+   * Collects the allocations in the scope, grouped by type and site.
+   */
+  private static final class Collector implements AllocationBudget.Listener {
+    // "type at site" -> { allocations, bytes }
+    private final Map<String, long[]> sites =
+        new LinkedHashMap<String, long[]>();
+    private long allocations;
+
+    @Override
+    public void budgetExceeded(AllocationBudget budget, String type,
+        int count, long bytes, long usedBytes, StackTraceElement[] stack) {
+      allocations++;
+      String key = type + " at " + StackCapture.site(stack);
+      long[] totals = sites.get(key);
+      if (totals == null) {
+        totals = new long[2];
+        sites.put(key, totals);
+      }
+      totals[0]++;
+      totals[1] += bytes;
+    }
+
+    void describe(StringBuilder sb, AllocationBudget.Scope scope) {
+      sb.append(allocations).append(" allocations of ")
+          .append(scope.getUsedBytes()).append(" bytes:");
+      int reported = 0;
+      for (Map.Entry<String, long[]> e : sites.entrySet()) {
+        if (reported++ == MAX_REPORTED_SITES) {
+          sb.append("\n  ... and ").append(sites.size() - MAX_REPORTED_SITES)
+              .append(" more sites");
+          break;
+        }
+        sb.append("\n  ").append(e.getValue()[0]).append(" x ")
+            .append(e.getKey()).append(" (").append(e.getValue()[1])
+            .append(" bytes)");
+      }
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.Closeable;
+
+/**
+ * A limit on the recorded allocations made by a region of code on one
+ * thread: on the number of bytes allocated, on the number of large arrays
+ * allocated, or both.  Every allocation made while the budget is exceeded is
+ * reported to the budget's {@link Listener}, with the site that made it.  The
+ * listener can be {@link #THROW}, which turns the allocation into an
+ * {@link AllocationBudgetExceededException}.
+ *
+ * <p>A budget is enforced while a {@link Scope} returned by {@link #enter()}
+ * is open; to budget a whole thread, open a scope when it starts.
+ * Accounting is done in the scope, which belongs to a single thread, so it
+ * needs no synchronization.  When scopes nest, an allocation is charged to
+ * all of them.
+ *
+ * <p>While any scope is open, allocations made on its thread are accounted
+ * for even if they are smaller than the recorder's minimum array size;
+ * allocations on other threads still pay only for the size check and a read
+ * of a shared counter.
+ */
+public final class AllocationBudget {
+  /**
+   * Told about each allocation that exceeds a budget.  Called on the
+   * allocating thread; allocations made by the listener are not recorded.
+   */
+  public interface Listener {
+    /**
+     * @param budget the budget that was exceeded.
+     * @param type the Java name of the allocated type, e.g. "byte[]".
+     * @param count the number of array elements, or -1 if not an array.
+     * @param bytes the size of the allocation.
+     * @param usedBytes the bytes allocated in the scope, including this
+     *   allocation.
+     * @param stack the allocating stack, innermost frame (the site) first.
+     */
+    void budgetExceeded(AllocationBudget budget, String type, int count,
+        long bytes, long usedBytes, StackTraceElement[] stack);
+  }
+
+  /**
+   * A listener that throws an {@link AllocationBudgetExceededException} from
+   * the allocation that exceeded the budget.
+   */
+  public static final Listener THROW = new Listener() {
+    @Override
+    public void budgetExceeded(AllocationBudget budget, String type,
+        int count, long bytes, long usedBytes, StackTraceElement[] stack) {
+      throw new AllocationBudgetExceededException(
+          budget, type, count, bytes, usedBytes, stack);
+    }
+  };
+
+  // Set when the first scope is entered, on any thread, and never cleared.
+  // Until then, the recorder can filter allocations without looking at the
+  // allocating thread.  After that, it checks the thread's own scope.  The
+  // flag is only written once, so entering and closing scopes only touch
+  // the thread's own state.
+  static volatile boolean used;
+
+  private final String name;
+  private final long maxBytes;
+  private final int maxLargeArrays;
+  private final int largeArraySize;
+  private final Listener listener;
+
+  /**
+   * @param name describes the budget in reports.
+   * @param maxBytes the number of bytes that can be allocated in a scope;
+   *   Long.MAX_VALUE for no limit.
+   * @param maxLargeArrays the number of large arrays that can be allocated
+   *   in a scope; Integer.MAX_VALUE for no limit.
+   * @param largeArraySize the number of elements from which an array is
+   *   large.
+   * @param listener told about allocations that exceed the budget.
+   */
+  public AllocationBudget(String name, long maxBytes, int maxLargeArrays,
+      int largeArraySize, Listener listener) {
+    this.name = name;
+    this.maxBytes = maxBytes;
+    this.maxLargeArrays = maxLargeArrays;
+    this.largeArraySize = largeArraySize;
+    this.listener = listener;
+  }
+
+  /**
+   * A budget that only limits the bytes allocated.
+   */
+  public AllocationBudget(String name, long maxBytes, Listener listener) {
+    this(name, maxBytes, Integer.MAX_VALUE, Integer.MAX_VALUE, listener);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public int getMaxLargeArrays() {
+    return maxLargeArrays;
+  }
+
+  public int getLargeArraySize() {
+    return largeArraySize;
+  }
+
+  /**
+   * Starts enforcing this budget on the current thread, until the returned
+   * scope is closed.
+   */
+  public Scope enter() {
+    return new Scope(this, AllocationRecorder.getThreadState());
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /**
+   * A region of code on one thread in which a budget is enforced.  Scopes
+   * must be closed on the thread that opened them, in the reverse order in
+   * which they were opened.
+   */
+  public static final class Scope implements Closeable {
+    private final AllocationBudget budget;
+    private final AllocationRecorder.ThreadState state;
+    private final Scope enclosing;
+    private boolean closed;
+    private long usedBytes;
+    private int largeArrays;
+
+    Scope(AllocationBudget budget, AllocationRecorder.ThreadState state) {
+      this.budget = budget;
+      this.state = state;
+      this.enclosing = state.budget;
+      state.budget = this;
+      if (!used) {
+        used = true;
+      }
+    }
+
+    /** Returns the bytes allocated in this scope so far. */
+    public long getUsedBytes() {
+      return usedBytes;
+    }
+
+    /** Returns the large arrays allocated in this scope so far. */
+    public int getLargeArrays() {
+      return largeArrays;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        state.budget = enclosing;
+      }
+    }
+
+    // Charges an allocation to this scope and the ones it is nested in.
+    void charge(String desc, int count, Object newObj, long bytes) {
+      for (Scope scope = this; scope != null; scope = scope.enclosing) {
+        AllocationBudget b = scope.budget;
+        scope.usedBytes += bytes;
+        boolean large = count >= b.largeArraySize;
+        if (large) {
+          scope.largeArrays++;
+        }
+        if (scope.usedBytes > b.maxBytes ||
+            (large && scope.largeArrays > b.maxLargeArrays)) {
+          b.listener.budgetExceeded(b, AllocationProfile.typeName(count,
+              desc, newObj), count, bytes, scope.usedBytes,
+              StackCapture.capture(AllocationProfile.MAX_STACK_DEPTH));
+        }
+      }
+    }
+  }
+}
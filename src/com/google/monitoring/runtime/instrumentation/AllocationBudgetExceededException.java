@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * Thrown from an allocation that exceeded an {@link AllocationBudget} whose
+ * listener is {@link AllocationBudget#THROW}.
+ */
+public class AllocationBudgetExceededException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  private final transient AllocationBudget budget;
+  private final String type;
+  private final long bytes;
+  private final long usedBytes;
+
+  AllocationBudgetExceededException(AllocationBudget budget, String type,
+      int count, long bytes, long usedBytes, StackTraceElement[] stack) {
+    super("Allocation of " + (count >= 0 ? count + " element " : "") +
+        type + " (" + bytes + " bytes) at " + StackCapture.site(stack) +
+        " exceeded allocation budget " + budget + ": " + usedBytes +
+        " bytes used");
+    this.budget = budget;
+    this.type = type;
+    this.bytes = bytes;
+    this.usedBytes = usedBytes;
+    setStackTrace(stack);
+  }
+
+  public AllocationBudget getBudget() {
+    return budget;
+  }
+
+  /** Returns the Java name of the allocated type. */
+  public String getType() {
+    return type;
+  }
+
+  /** Returns the size of the allocation that exceeded the budget. */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /** Returns the bytes allocated in the budget's scope. */
+  public long getUsedBytes() {
+    return usedBytes;
+  }
+}
@@ -19,9 +19,16 @@ package com.google.monitoring.runtime.instrumentation;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
 import org.objectweb.asm.commons.LocalVariablesSorter;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Instruments bytecodes that allocate heap memory to call a recording hook.
  * A <code>ClassVisitor</code> that processes methods with a
@@ -31,14 +38,80 @@ import org.objectweb.asm.commons.JSRInlinerAdapter;
  * @author fischman@google.com (Ami Fischman) (Original Author)
  */
 class AllocationClassAdapter extends ClassVisitor {
+  // Bytecode sizes at which HotSpot changes its inlining decisions:
+  // MaxInlineSize, FreqInlineSize and HugeMethodLimit, respectively.
+  private static final int[] inliningLimits = new int[] { 35, 325, 8000 };
+
   private final String recorderClass;
   private final String recorderMethod;
+  private boolean outline;
+  private String className;
+  private boolean trackBuffers;
+  private boolean trackUnsafe;
+  private boolean trackGrowth;
+
+  // Whether the class file is old enough to contain JSR and RET
+  // instructions, which are not allowed from version 51 (Java 7) on.
+  private boolean mayHaveSubroutines;
+
+  // The numbers of the allocation sites registered with AllocationSites for
+  // this class, or null if sites aren't being counted.
+  private List<Integer> sites;
+
+  // The number LoaderAttribution gave the loader of the class, or -1 if
+  // allocations aren't charged to loaders.  Set before the class is visited.
+  int loader = -1;
+
+  // Whether arrays are recorded before they are allocated, without the
+  // recorder seeing them.  Only the agent's own recorder has the methods
+  // for that.  Set before the class is visited.
+  boolean noEscape;
+
+  // Helper methods requested by the method adapters, keyed by what they
+  // do.  They are added to the class in visitEnd().
+  private final Map<String, OutlinedHelper> helpers =
+      new LinkedHashMap<String, OutlinedHelper>();
 
   public AllocationClassAdapter(ClassVisitor cv, String recorderClass,
       String recorderMethod) {
+    this(cv, recorderClass, recorderMethod, false);
+  }
+
+  /**
+   * @param outline whether the bulkier instrumentation sequences should be
+   *   moved into private static helper methods of the instrumented class.
+   */
+  public AllocationClassAdapter(ClassVisitor cv, String recorderClass,
+      String recorderMethod, boolean outline) {
     super(Opcodes.ASM5, cv);
     this.recorderClass = recorderClass;
     this.recorderMethod = recorderMethod;
+    this.outline = outline;
+  }
+
+  @Override
+  public void visit(int version, int access, String name, String signature,
+      String superName, String[] interfaces) {
+    className = name;
+    mayHaveSubroutines = (version & 0xFFFF) < Opcodes.V1_7;
+    // The JDK's own Unsafe calls are left alone: its direct buffers are
+    // counted where they are allocated.
+    trackBuffers = AllocationInstrumenter.trackOffHeap;
+    trackUnsafe = trackBuffers && !name.startsWith("java/")
+        && !name.startsWith("sun/") && !name.startsWith("jdk/");
+    // Some of Arrays' copy methods call others, which would count one copy
+    // twice.
+    trackGrowth = AllocationInstrumenter.trackGrowth
+        && !name.equals("java/util/Arrays");
+    if (AllocationInstrumenter.trackSites) {
+      sites = new ArrayList<Integer>();
+    }
+    // Interfaces can't have private static methods before Java 8, and are
+    // unlikely to allocate much anyway, so we instrument them inline.
+    if ((access & Opcodes.ACC_INTERFACE) != 0) {
+      outline = false;
+    }
+    super.visit(version, access, name, signature, superName, interfaces);
   }
 
   /**
@@ -47,24 +120,196 @@ class AllocationClassAdapter extends ClassVisitor {
    * Note that a new MethodVisitor is constructed for each method.
    */
   @Override
-  public MethodVisitor visitMethod(int access, String base, String desc,
-      String signature, String[] exceptions) {
+  public MethodVisitor visitMethod(int access, final String base,
+      final String desc, String signature, String[] exceptions) {
     MethodVisitor mv =
       cv.visitMethod(access, base, desc, signature, exceptions);
 
+    final CodeSizeEvaluator instrumentedSize;
+    if (mv != null && AllocationInstrumenter.reportCodeGrowth) {
+      instrumentedSize = new CodeSizeEvaluator(mv);
+      mv = instrumentedSize;
+    } else {
+      instrumentedSize = null;
+    }
+
     if (mv != null) {
       // We need to compute stackmaps (see
       // AllocationInstrumenter#instrument).  This can't really be
       // done for old bytecode that contains JSR and RET instructions.
-      // So, we remove JSRs and RETs.
-      JSRInlinerAdapter jsria = new JSRInlinerAdapter(
-          mv, access, base, desc, signature, exceptions);
+      // So, we remove JSRs and RETs.  The inliner builds a tree of every
+      // method it sees, so it is only used where it might be needed.
+      if (mayHaveSubroutines) {
+        mv = new JSRInlinerAdapter(
+            mv, access, base, desc, signature, exceptions);
+      }
+      if (AllocationInstrumenter.trackMethods) {
+        // Only the entry and exit of selected methods are hooked.
+        if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0
+            && MethodAllocations.isSelected(className, base)) {
+          mv = new MethodAllocationAdapter(mv, access, base, desc,
+              MethodAllocations.register(methodName(base, desc)));
+        }
+      } else {
+        AllocationMethodAdapter aimv =
+          new AllocationMethodAdapter(mv, recorderClass, recorderMethod,
+              outline ? this : null);
+        aimv.trackBuffers = trackBuffers;
+        aimv.trackUnsafe = trackUnsafe;
+        aimv.trackLambdas = AllocationInstrumenter.trackLambdas;
+        aimv.trackBoxing = AllocationInstrumenter.trackBoxing;
+        aimv.trackGrowth = trackGrowth;
+        aimv.noEscape = noEscape;
+        aimv.loader = loader;
+        if (sites != null) {
+          aimv.inventory = this;
+          aimv.methodName = base;
+        }
+        LocalVariablesSorter lvs = new LocalVariablesSorter(access, desc, aimv);
+        aimv.lvs = lvs;
+        mv = lvs;
+      }
+    }
+    if (instrumentedSize != null) {
+      mv = new CodeSizeEvaluator(mv) {
+        @Override
+        public void visitEnd() {
+          super.visitEnd();
+          reportGrowth(base + desc, getMaxSize(),
+              instrumentedSize.getMaxSize());
+        }
+      };
+    }
+    return mv;
+  }
+
+  // Returns the name MethodAllocations reports a method by, for example
+  // com.example.Server.handle(java.lang.String, int).
+  private String methodName(String name, String desc) {
+    StringBuilder sb = new StringBuilder(className.replace('/', '.'));
+    sb.append('.').append(name).append('(');
+    Type[] arguments = Type.getArgumentTypes(desc);
+    for (int i = 0; i < arguments.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(arguments[i].getClassName());
+    }
+    return sb.append(')').toString();
+  }
+
+  /**
+   * Adds the helper methods requested by the instrumented methods.  Each
+   * helper is itself instrumented inline.
+   */
+  @Override
+  public void visitEnd() {
+    for (OutlinedHelper helper : helpers.values()) {
+      MethodVisitor mv = cv.visitMethod(
+          Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+          helper.name, helper.desc, null, null);
       AllocationMethodAdapter aimv =
-        new AllocationMethodAdapter(jsria, recorderClass, recorderMethod);
-      LocalVariablesSorter lvs = new LocalVariablesSorter(access, desc, aimv);
+          new AllocationMethodAdapter(mv, recorderClass, recorderMethod, null);
+      aimv.loader = loader;
+      LocalVariablesSorter lvs = new LocalVariablesSorter(
+          Opcodes.ACC_STATIC, helper.desc, aimv);
       aimv.lvs = lvs;
-      mv = lvs;
+      lvs.visitCode();
+      helper.emitBody(lvs, aimv);
+      lvs.visitMaxs(0, 0);
+      lvs.visitEnd();
     }
-    return mv;
+    super.visitEnd();
+  }
+
+  /**
+   * Returns the name of the helper method that does what the given helper
+   * does, adding the helper to the class if no such helper has been
+   * requested before.  Called by {@link AllocationMethodAdapter} when
+   * outlining.
+   */
+  String requestHelper(OutlinedHelper helper) {
+    OutlinedHelper existing = helpers.get(helper.key);
+    if (existing == null) {
+      helper.name = "$allocation$" + helpers.size();
+      helpers.put(helper.key, helper);
+      existing = helper;
+    }
+    return existing.name;
+  }
+
+  String getClassName() {
+    return className;
+  }
+
+  /** Whether any helper methods were added to the class. */
+  boolean hasHelpers() {
+    return !helpers.isEmpty();
+  }
+
+  /**
+   * Registers an allocation site in this class with {@link AllocationSites}.
+   * Called by {@link AllocationMethodAdapter} when sites are being counted.
+   *
+   * @return the number of the site.
+   */
+  int addSite(String method, int line, String kind, String type) {
+    int site = AllocationSites.register(className, method, line, kind, type);
+    sites.add(site);
+    return site;
+  }
+
+  /**
+   * Marks the sites registered for this class as skipped, when the class
+   * is left as it was.
+   */
+  void skipSites(String reason) {
+    if (sites != null) {
+      AllocationSites.skip(sites, reason);
+    }
+  }
+
+  private void reportGrowth(String method, int before, int after) {
+    if (after == before) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append(className).append('.').append(method).append(": ")
+        .append(before).append(" -> ").append(after).append(" bytes (+")
+        .append(after - before).append(')');
+    for (int limit : inliningLimits) {
+      if (before <= limit && after > limit) {
+        sb.append(", now larger than ").append(limit);
+      }
+    }
+    AllocationInstrumenter.logger.info(sb.toString());
+  }
+
+  /**
+   * A private static method added to the instrumented class that holds an
+   * instrumentation sequence shared between allocation sites.
+   */
+  abstract static class OutlinedHelper {
+    final String key;
+    final String desc;
+    String name;
+
+    /**
+     * @param key identifies what the helper does; requests for helpers with
+     *   equal keys share a single method.
+     * @param desc the method descriptor of the helper.
+     */
+    OutlinedHelper(String key, String desc) {
+      this.key = key;
+      this.desc = desc;
+    }
+
+    /**
+     * Emits the body of the helper, between visitCode() and visitMaxs().
+     * @param mv the visitor that writes the (instrumented) helper.
+     * @param aimv the adapter doing the instrumentation, for helpers that
+     *   need to call its instrumentation sequences directly.
+     */
+    abstract void emitBody(MethodVisitor mv, AllocationMethodAdapter aimv);
   }
 }
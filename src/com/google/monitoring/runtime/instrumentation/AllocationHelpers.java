@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * Static helper methods called from bytecode rewritten by
+ * {@link AllocationInstrumenter}.  They have to be public so that
+ * instrumented classes in any package can call them.
+ */
+public final class AllocationHelpers {
+  private AllocationHelpers() { }
+
+  // Internal names of classes passed to Array.newInstance, computed the first
+  // time each class is seen.  ClassValue doesn't keep the classes (or their
+  // loaders) alive.
+  private static final ClassValue<String> internalNames =
+      new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+          return type.getName().replace('.', '/');
+        }
+      };
+
+  /**
+   * Returns the internal name of the given class, as in
+   * {@code type.getName().replace('.', '/')}, without allocating once the
+   * class has been seen.
+   */
+  public static String getInternalName(Class<?> type) {
+    return internalNames.get(type);
+  }
+
+  // The upper bound of Integer.valueOf's cache, which can be raised with
+  // -XX:AutoBoxCacheMax.  The JDK hides the property that carries it, so it
+  // is found by checking which values valueOf returns the same box for.
+  private static final class IntegerCache {
+    static final int HIGH = findHigh();
+
+    private static int findHigh() {
+      int low = 127;
+      int high = Integer.MAX_VALUE;
+      while (low < high) {
+        int mid = low + (high - low + 1) / 2;
+        if (Integer.valueOf(mid) == Integer.valueOf(mid)) {
+          low = mid;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return low;
+    }
+  }
+
+  /**
+   * Returns whether {@code Integer.valueOf} allocated the given box, rather
+   * than returning a cached one.
+   */
+  public static boolean isNewBox(Integer box) {
+    int value = box;
+    return value < -128 || value > IntegerCache.HIGH;
+  }
+
+  /**
+   * Returns whether {@code Long.valueOf} allocated the given box.
+   */
+  public static boolean isNewBox(Long box) {
+    long value = box;
+    return value < -128 || value > 127;
+  }
+
+  /**
+   * Returns whether {@code Short.valueOf} allocated the given box.
+   */
+  public static boolean isNewBox(Short box) {
+    short value = box;
+    return value < -128 || value > 127;
+  }
+
+  /**
+   * Returns whether {@code Character.valueOf} allocated the given box.
+   */
+  public static boolean isNewBox(Character box) {
+    return box > 127;
+  }
+}
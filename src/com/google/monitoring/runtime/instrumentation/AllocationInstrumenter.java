@@ -16,7 +16,6 @@
 
 package com.google.monitoring.runtime.instrumentation;
 
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
@@ -26,7 +25,12 @@ import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,6 +55,60 @@ public class AllocationInstrumenter implements ClassFileTransformer {
   // guarantee programmatically.
   private static volatile boolean canRewriteBootstrap;
 
+  // The recorder the agent itself instruments classes to call.
+  private static final String RECORDER_CLASS =
+      "com/google/monitoring/runtime/instrumentation/AllocationRecorder";
+
+  // If set, the bulkier instrumentation sequences (reflective array
+  // allocation and multi-dimensional array dispatch) are moved into private
+  // static helper methods added to the instrumented class, so that each
+  // allocation site only grows by a couple of instructions.
+  static volatile boolean outlineHelpers;
+
+  // The classes that helpers were outlined into, by loader (null for the
+  // bootstrap loader).  A retransformed class must keep all of its methods,
+  // so these classes get the same helpers again when they are
+  // retransformed.  Guarded by itself.
+  private static final Map<ClassLoader, Set<String>> outlinedClasses =
+      new WeakHashMap<ClassLoader, Set<String>>();
+
+  // If set, the growth in bytecode size of every instrumented method is
+  // logged, so that the effect of instrumentation on inlining can be seen.
+  static volatile boolean reportCodeGrowth;
+
+  // If set, calls that allocate and free memory outside the heap are hooked
+  // to call OffHeapRecorder.
+  static volatile boolean trackOffHeap;
+
+  // If set, capturing lambdas are recorded where invokedynamic creates them.
+  static volatile boolean trackLambdas;
+
+  // If set, calls to the box classes' valueOf methods that allocate are
+  // recorded.
+  static volatile boolean trackBoxing;
+
+  // If set, arrays copied with Arrays.copyOf and copyOfRange are passed to
+  // GrowthRecorder.
+  static volatile boolean trackGrowth;
+
+  // If set, every allocation site that is instrumented is registered with
+  // AllocationSites, which counts the visits to it.
+  static volatile boolean trackSites;
+
+  // If set, newarray and anewarray are recorded without passing the new
+  // array to the recorder, so that the JIT can still eliminate arrays that
+  // don't escape.
+  static volatile boolean noEscape;
+
+  // If set, the loader of each instrumented class is registered with
+  // LoaderAttribution, and its number is passed to the recorder.
+  static volatile boolean trackLoaders;
+
+  // If set, allocation instructions aren't hooked.  Instead, the methods
+  // selected with the methods argument call MethodAllocations on entry and
+  // exit.
+  static volatile boolean trackMethods;
+
   static boolean canRewriteClass(String className, ClassLoader loader) {
     // There are two conditions under which we don't rewrite:
     //  1. If className was loaded by the bootstrap class loader and
@@ -66,6 +124,11 @@ public class AllocationInstrumenter implements ClassFileTransformer {
     if (className.startsWith("ognl/")) {
       return false;
     }
+    // The agent's own classes (including the runtime helpers called from
+    // instrumented code) must not call back into the recorder.
+    if (className.startsWith("com/google/monitoring/runtime/instrumentation/")) {
+      return false;
+    }
 
     return true;
   }
@@ -105,14 +168,106 @@ public class AllocationInstrumenter implements ClassFileTransformer {
     }
 
     canRewriteBootstrap = true;
-    List<String> args = Arrays.asList(
-        agentArgs == null ? new String[0] : agentArgs.split(","));
+    // Arguments are a comma separated list.  The first two plain values are
+    // the minimum array size and the number of stack traces to print; any
+    // argument of the form key=value is an option.
+    List<String> args = new ArrayList<String>();
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : Arrays.asList(
+        agentArgs == null ? new String[0] : agentArgs.split(","))) {
+      int eq = arg.indexOf('=');
+      if (eq < 0) {
+        args.add(arg);
+      } else {
+        options.put(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+      }
+    }
     if (args.size() >= 1) {
     	AllocationRecorder.minArraySize = Integer.parseInt(args.get(0));
     }
     if (args.size() >= 2) {
     	AllocationRecorder.stackTracesRemaining.set(Integer.parseInt(args.get(1)));
     }
+    outlineHelpers = Boolean.parseBoolean(options.get("outline"));
+    reportCodeGrowth = Boolean.parseBoolean(options.get("codeGrowth"));
+    trackLambdas = Boolean.parseBoolean(options.get("lambdas"));
+    trackBoxing = Boolean.parseBoolean(options.get("boxing"));
+    noEscape = Boolean.parseBoolean(options.get("noEscape"));
+    if (Boolean.parseBoolean(options.get("stats"))) {
+      AgentStats.install(options.get("statsReport"));
+    }
+    if (options.containsKey("print")) {
+      AllocationRecorder.printAllocations =
+          Boolean.parseBoolean(options.get("print"));
+      AllocationRecorder.printObjects = AllocationRecorder.printAllocations;
+    }
+    if (Boolean.parseBoolean(options.get("jfr"))) {
+      Sampler jfrSampler = JfrSupport.newSampler();
+      if (jfrSampler != null) {
+        AllocationRecorder.addSampler(jfrSampler);
+      } else {
+        System.err.println("JFR events need Java 11 or later; not enabled.");
+      }
+    }
+    if (options.containsKey("lifetimes") && noEscape) {
+      System.err.println("Lifetimes are only tracked for arrays that " +
+          "aren't recorded with noEscape.");
+    }
+    if (options.containsKey("lifetimes")) {
+      int lifetimes;
+      try {
+        lifetimes = Integer.parseInt(options.get("lifetimes"));
+      } catch (NumberFormatException e) {
+        lifetimes = 0;
+      }
+      if (lifetimes > 0) {
+        LifetimeSampler.install(lifetimes, options.get("lifetimesReport"));
+      } else {
+        System.err.println("lifetimes must be a positive number of " +
+            "allocations; lifetimes not enabled.");
+      }
+    }
+    if (Boolean.parseBoolean(options.get("offHeap"))) {
+      trackOffHeap = true;
+      OffHeapRecorder.install(options.get("offHeapReport"));
+    }
+    if (Boolean.parseBoolean(options.get("growth"))) {
+      trackGrowth = true;
+      GrowthRecorder.install(options.get("growthReport"));
+    }
+    if (Boolean.parseBoolean(options.get("sites"))) {
+      trackSites = true;
+      AllocationSites.install(options.get("sitesReport"));
+    }
+    if (Boolean.parseBoolean(options.get("loaders"))) {
+      trackLoaders = true;
+      LoaderAttribution.install(options.get("loadersReport"));
+    }
+    if (options.containsKey("methods")) {
+      trackMethods = MethodAllocations.install(options.get("methods"),
+          options.get("methodsReport"));
+    }
+    if (Boolean.parseBoolean(options.get("timeline"))) {
+      AllocationTimeline.install(options.get("timelineMillis"),
+          options.get("timelineWindows"), options.get("timelineReport"));
+    }
+    if (options.containsKey("countersFile")) {
+      SharedCounters.install(options.get("countersFile"),
+          options.get("countersInterval"));
+    }
+    if (options.containsKey("overheadBudget")) {
+      OverheadGovernor.install(options.get("overheadBudget"),
+          options.get("gcBudget"));
+    }
+    if (options.containsKey("profile")) {
+      ProfileDumper.install(options.get("profile"),
+          options.get("profileFormat"), options.get("dumpInterval"),
+          options.get("maxProfileEntries"));
+    }
+    if (options.containsKey("metricsPort")) {
+      MetricsServer.install(options.get("metricsPort"),
+          options.get("maxProfileEntries"));
+    }
 
     bootstrap(inst);
   }
@@ -149,11 +304,44 @@ public class AllocationInstrumenter implements ClassFileTransformer {
   @Override public byte[] transform(
       ClassLoader loader, String className, Class<?> classBeingRedefined,
       ProtectionDomain protectionDomain, byte[] origBytes) {
-    if (!canRewriteClass(className, loader)) {
+    if (!canRewriteClass(className, loader) || (trackMethods &&
+        (className == null || !MethodAllocations.mayBeSelected(className)))) {
+      if (AgentStats.enabled) {
+        AgentStats.classFiltered();
+      }
+      if (trackSites && className != null) {
+        AllocationSites.classFiltered(className, origBytes);
+      }
       return null;
     }
 
-    return instrument(origBytes, loader);
+    // Retransformation may neither add methods to a class nor remove them.
+    // Helpers are outlined into classes that are being loaded for the first
+    // time, and the same helpers are generated again when those classes are
+    // retransformed.  Classes loaded without them, such as the ones the
+    // agent retransforms when it starts, are left without them.
+    boolean outline = outlineHelpers
+        && (classBeingRedefined == null || wasOutlined(loader, className));
+    return instrument(origBytes, RECORDER_CLASS, "recordAllocation", loader,
+        outline);
+  }
+
+  private static boolean wasOutlined(ClassLoader loader, String className) {
+    synchronized (outlinedClasses) {
+      Set<String> classes = outlinedClasses.get(loader);
+      return classes != null && classes.contains(className);
+    }
+  }
+
+  private static void outlined(ClassLoader loader, String className) {
+    synchronized (outlinedClasses) {
+      Set<String> classes = outlinedClasses.get(loader);
+      if (classes == null) {
+        classes = new HashSet<String>();
+        outlinedClasses.put(loader, classes);
+      }
+      classes.add(className);
+    }
   }
 
   /**
@@ -172,31 +360,78 @@ public class AllocationInstrumenter implements ClassFileTransformer {
    */
   public static byte[] instrument(byte[] originalBytes, String recorderClass,
       String recorderMethod, ClassLoader loader) {
+    return instrument(
+        originalBytes, recorderClass, recorderMethod, loader, outlineHelpers);
+  }
+
+  private static byte[] instrument(byte[] originalBytes, String recorderClass,
+      String recorderMethod, ClassLoader loader, boolean outline) {
+    long start = AgentStats.enabled ? System.nanoTime() : 0;
+    AllocationClassAdapter adapter = null;
+    TransformContext context = TransformContext.acquire();
     try {
       ClassReader cr = new ClassReader(originalBytes);
       // The verifier in JDK7+ requires accurate stackmaps, so we use
-      // COMPUTE_FRAMES.
-      ClassWriter cw =
-          new StaticClassWriter(cr, ClassWriter.COMPUTE_FRAMES, loader);
+      // COMPUTE_FRAMES.  Passing the reader lets the writer copy the
+      // constant pool instead of building it up entry by entry.
+      ClassWriter cw = new StaticClassWriter(
+          cr, ClassWriter.COMPUTE_FRAMES, loader, context);
 
       VerifyingClassAdapter vcw =
           new VerifyingClassAdapter(cw, originalBytes, cr.getClassName());
-      ClassVisitor adapter =
-          new AllocationClassAdapter(vcw, recorderClass, recorderMethod);
+      adapter = new AllocationClassAdapter(vcw, recorderClass, recorderMethod,
+          outline);
+      // Other recorders are called with the signatures they were written
+      // for.
+      if (RECORDER_CLASS.equals(recorderClass)) {
+        adapter.noEscape = noEscape;
+        if (trackLoaders) {
+          adapter.loader = LoaderAttribution.register(loader);
+        }
+      }
 
       cr.accept(adapter, ClassReader.SKIP_FRAMES);
 
-      return vcw.toByteArray();
+      byte[] result = vcw.toByteArray();
+      if (!vcw.isVerified()) {
+        adapter.skipSites("a method would be longer than 64K");
+        if (AgentStats.enabled) {
+          AgentStats.classFellBack();
+        }
+      } else {
+        if (adapter.hasHelpers()) {
+          outlined(loader, cr.getClassName());
+        }
+        if (AgentStats.enabled) {
+          AgentStats.classTransformed(System.nanoTime() - start,
+              originalBytes.length, result.length);
+        }
+      }
+      return result;
     } catch (RuntimeException e) {
       logger.log(Level.WARNING, "Failed to instrument class.", e);
+      failed(adapter, e);
       throw e;
     } catch (Error e) {
       logger.log(Level.WARNING, "Failed to instrument class.", e);
+      failed(adapter, e);
       throw e;
+    } finally {
+      context.release();
     }
   }
 
 
+  private static void failed(AllocationClassAdapter adapter, Throwable t) {
+    if (adapter != null) {
+      adapter.skipSites("instrumentation failed");
+    }
+    if (AgentStats.enabled) {
+      AgentStats.classFailed(
+          adapter != null ? adapter.getClassName() : null, t);
+    }
+  }
+
   /**
    * @see #instrument(byte[], String, String, ClassLoader)
    * documentation for the 4-arg version.  This is a convenience
@@ -206,10 +441,6 @@ public class AllocationInstrumenter implements ClassFileTransformer {
    * @return the instrumented version of this class.
    */
   public static byte[] instrument(byte[] originalBytes, ClassLoader loader) {
-    return instrument(
-        originalBytes,
-        "com/google/monitoring/runtime/instrumentation/AllocationRecorder",
-        "recordAllocation",
-        loader);
+    return instrument(originalBytes, RECORDER_CLASS, "recordAllocation", loader);
   }
 }
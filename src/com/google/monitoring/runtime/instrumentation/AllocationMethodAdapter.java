@@ -16,16 +16,17 @@
 
 package com.google.monitoring.runtime.instrumentation;
 
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.LocalVariablesSorter;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  * A <code>MethodVisitor</code> that instruments all heap allocation bytecodes
@@ -50,6 +51,32 @@ class AllocationMethodAdapter extends MethodVisitor {
   public static final String RECORDER_SIGNATURE =
       "(ILjava/lang/String;Ljava/lang/Object;)V";
 
+  /**
+   * The signature of the recorder method called instead when the agent is
+   * started with <code>noEscape=true</code>, which has the same name.  It
+   * is called before a newarray or anewarray instruction, and takes the
+   * length of the array and the element type, but not the array, so that
+   * the array doesn't escape the method that allocates it.
+   */
+  public static final String NO_ESCAPE_RECORDER_SIGNATURE =
+      "(ILjava/lang/String;)V";
+
+  /**
+   * When the agent is started with <code>loaders=true</code>, the recorder
+   * is instead called through an overload of the method with one of the
+   * signatures above that takes one more int argument: the number
+   * {@link LoaderAttribution} gave the loader of the allocating class.
+   */
+  public static final String LOADER_RECORDER_SIGNATURE =
+      "(ILjava/lang/String;Ljava/lang/Object;I)V";
+
+  /**
+   * The signature of the overload taking the loader's number that is called
+   * in place of the one with {@link #NO_ESCAPE_RECORDER_SIGNATURE}.
+   */
+  public static final String NO_ESCAPE_LOADER_RECORDER_SIGNATURE =
+      "(ILjava/lang/String;I)V";
+
   // A helper struct for describing the scope of temporary local variables we
   // create as part of the instrumentation.
   private static class VariableScope {
@@ -81,7 +108,7 @@ class AllocationMethodAdapter extends MethodVisitor {
 
   private  List<VariableScope> getLocalScopes() {
     if (localScopes == null) {
-      localScopes = new LinkedList<VariableScope>();
+      localScopes = new ArrayList<VariableScope>();
     }
     return localScopes;
   }
@@ -89,6 +116,10 @@ class AllocationMethodAdapter extends MethodVisitor {
   private final String recorderClass;
   private final String recorderMethod;
 
+  // The class adapter that adds outlined helper methods to the class, or null
+  // if all instrumentation should be emitted inline.
+  private final AllocationClassAdapter outliner;
+
   /**
    * The LocalVariablesSorter used in this adapter.  Lame that it's public but
    * the ASM architecture requires setting it from the outside after this
@@ -98,14 +129,77 @@ class AllocationMethodAdapter extends MethodVisitor {
    */
   public LocalVariablesSorter lvs = null;
 
+  // Whether calls that allocate direct and mapped buffers, and calls to
+  // Unsafe's memory management methods, are hooked to call OffHeapRecorder.
+  // Set by AllocationClassAdapter.visitMethod().
+  boolean trackBuffers;
+  boolean trackUnsafe;
+
+  // Whether capturing lambdas are recorded.  Set by
+  // AllocationClassAdapter.visitMethod().
+  boolean trackLambdas;
+
+  // Whether boxing with valueOf is recorded when it allocates.  Set by
+  // AllocationClassAdapter.visitMethod().
+  boolean trackBoxing;
+
+  // Whether arrays copied with Arrays.copyOf and copyOfRange are passed to
+  // GrowthRecorder.  Set by AllocationClassAdapter.visitMethod().
+  boolean trackGrowth;
+
+  // Whether newarray and anewarray are recorded without passing the array to
+  // the recorder.  Set by AllocationClassAdapter.visitMethod().
+  boolean noEscape;
+
+  // If set, each allocation site is registered with the class adapter and
+  // counts its visits with AllocationSites.  Set by
+  // AllocationClassAdapter.visitMethod(), so that the helpers it outlines
+  // aren't counted twice.
+  AllocationClassAdapter inventory;
+  String methodName;
+
+  // The number LoaderAttribution gave the loader of the class, which is
+  // passed to the recorder, or -1 if allocations aren't charged to loaders.
+  // Set by AllocationClassAdapter.visitMethod().
+  int loader = -1;
+
+  // The source line of the instructions being visited.
+  private int line;
+
+  // The primitive type boxed by each class whose valueOf is hooked.  Byte and
+  // Boolean are left out because valueOf never allocates them.
+  private static final Map<String, String> boxedTypes =
+      new HashMap<String, String>();
+  static {
+    boxedTypes.put("java/lang/Integer", "I");
+    boxedTypes.put("java/lang/Long", "J");
+    boxedTypes.put("java/lang/Short", "S");
+    boxedTypes.put("java/lang/Character", "C");
+    boxedTypes.put("java/lang/Float", "F");
+    boxedTypes.put("java/lang/Double", "D");
+  }
+
+  private static final String OFF_HEAP_RECORDER =
+      "com/google/monitoring/runtime/instrumentation/OffHeapRecorder";
+
   /**
    * A new AllocationMethodAdapter is created for each method that gets visited.
    */
   public AllocationMethodAdapter(MethodVisitor mv, String recorderClass,
                          String recorderMethod) {
+    this(mv, recorderClass, recorderMethod, null);
+  }
+
+  /**
+   * @param outliner if non-null, the bulkier instrumentation sequences are
+   *   moved into helper methods that it adds to the class being instrumented.
+   */
+  public AllocationMethodAdapter(MethodVisitor mv, String recorderClass,
+      String recorderMethod, AllocationClassAdapter outliner) {
     super(Opcodes.ASM5, mv);
     this.recorderClass = recorderClass;
     this.recorderMethod = recorderMethod;
+    this.outliner = outliner;
   }
 
   /**
@@ -118,6 +212,12 @@ class AllocationMethodAdapter extends MethodVisitor {
       // instack: ... count
       // outstack: ... aref
       if (operand >= 4 && operand <= 11) {
+        countSite("newarray", primitiveTypeNames[operand]);
+        if (noEscape) {
+          invokeRecordAllocationBefore(primitiveTypeNames[operand]);
+          super.visitIntInsn(opcode, operand); // -> stack: ... aref
+          return;
+        }
         super.visitInsn(Opcodes.DUP); // -> stack: ... count count
         super.visitIntInsn(opcode, operand); // -> stack: ... count aref
         invokeRecordAllocation(primitiveTypeNames[operand]);
@@ -133,20 +233,16 @@ class AllocationMethodAdapter extends MethodVisitor {
   }
 
   // Helper method to compute class name as a String and push it on the stack.
+  // The name is looked up in a cache rather than computed, so that reflective
+  // allocation doesn't also allocate a String to describe itself.
   // pre: stack: ... class
   // post: stack: ... class className
   private void pushClassNameOnStack() {
     super.visitInsn(Opcodes.DUP);
     // -> stack: ... class class
-    super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class",
-        "getName", "()Ljava/lang/String;", false);
-    // -> stack: ... class classNameDotted
-    super.visitLdcInsn('.');
-    // -> stack: ... class classNameDotted '.'
-    super.visitLdcInsn('/');
-    // -> stack: ... class classNameDotted '.' '/'
-    super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String",
-        "replace", "(CC)Ljava/lang/String;", false);
+    super.visitMethodInsn(Opcodes.INVOKESTATIC,
+        "com/google/monitoring/runtime/instrumentation/AllocationHelpers",
+        "getInternalName", "(Ljava/lang/Class;)Ljava/lang/String;", false);
     // -> stack: ... class className
   }
 
@@ -219,15 +315,104 @@ class AllocationMethodAdapter extends MethodVisitor {
    * {@link java.lang.Object#clone} is also a call to INVOKESPECIAL,
    * and is hooked here.  {@link java.lang.Class#newInstance} and
    * {@link java.lang.reflect.Constructor#newInstance} are both
-   * INVOKEVIRTUAL calls, so they are hooked here, as well.
+   * INVOKEVIRTUAL calls, so they are hooked here, as well.  Optionally,
+   * calls that allocate memory outside the heap, calls that box primitives
+   * and calls that copy arrays are hooked here too.
    */
   @Override
   public void visitMethodInsn(int opcode, String owner, String name,
-      String signature, boolean itf) {
+      final String signature, boolean itf) {
+    if ((trackBuffers || trackUnsafe) &&
+        instrumentOffHeapCall(opcode, owner, name, signature, itf)) {
+      return;
+    }
+    if (trackGrowth && opcode == Opcodes.INVOKESTATIC &&
+        owner.equals("java/util/Arrays") &&
+        (name.equals("copyOf") || name.equals("copyOfRange"))) {
+      Label beginScopeLabel = new Label();
+      Label endScopeLabel = new Label();
+      super.visitLabel(beginScopeLabel);
+
+      // stack: ... original args
+      Type[] args = Type.getArgumentTypes(signature);
+      int[] argIndexes = new int[args.length];
+      for (int i = args.length - 1; i >= 0; i--) {
+        argIndexes[i] = newLocal(args[i], args[i].getDescriptor(),
+            beginScopeLabel, endScopeLabel);
+        super.visitVarInsn(args[i].getOpcode(Opcodes.ISTORE), argIndexes[i]);
+      }
+      // -> stack: ...
+      for (int i = 0; i < args.length; i++) {
+        super.visitVarInsn(args[i].getOpcode(Opcodes.ILOAD), argIndexes[i]);
+      }
+      // -> stack: ... original args
+      super.visitMethodInsn(opcode, owner, name, signature, itf);
+      // -> stack: ... copy
+      super.visitInsn(Opcodes.DUP);
+      super.visitVarInsn(Opcodes.ALOAD, argIndexes[0]);
+      super.visitLabel(endScopeLabel);
+      super.visitInsn(Opcodes.SWAP);
+      // -> stack: ... copy original copy
+      super.visitMethodInsn(Opcodes.INVOKESTATIC,
+          "com/google/monitoring/runtime/instrumentation/GrowthRecorder",
+          "recordCopy", "(Ljava/lang/Object;Ljava/lang/Object;)V", false);
+      // -> stack: ... copy
+      return;
+    }
+    if (trackBoxing && opcode == Opcodes.INVOKESTATIC &&
+        name.equals("valueOf") && boxedTypes.containsKey(owner) &&
+        signature.equals("(" + boxedTypes.get(owner) + ")L" + owner + ";")) {
+      countSite("valueOf", owner);
+      super.visitMethodInsn(opcode, owner, name, signature, itf);
+      // -> stack: ... box
+      Label cached = null;
+      if (!owner.equals("java/lang/Float") &&
+          !owner.equals("java/lang/Double")) {
+        // Only boxes outside the class's cache are new.
+        cached = new Label();
+        super.visitInsn(Opcodes.DUP);
+        // -> stack: ... box box
+        super.visitMethodInsn(Opcodes.INVOKESTATIC,
+            "com/google/monitoring/runtime/instrumentation/AllocationHelpers",
+            "isNewBox", "(L" + owner + ";)Z", false);
+        // -> stack: ... box isNew
+        super.visitJumpInsn(Opcodes.IFEQ, cached);
+        // -> stack: ... box
+      }
+      super.visitInsn(Opcodes.ICONST_M1);
+      super.visitInsn(Opcodes.SWAP);
+      // -> stack: ... -1 box
+      invokeRecordAllocation(owner);
+      // -> stack: ... box
+      if (cached != null) {
+        super.visitLabel(cached);
+      }
+      return;
+    }
     if (opcode == Opcodes.INVOKESTATIC &&
         // Array does its own native allocation.  Grr.
         owner.equals("java/lang/reflect/Array") &&
         name.equals("newInstance")) {
+      countSite("Array.newInstance", "java/lang/Object");
+      if (outliner != null &&
+          (signature.equals("(Ljava/lang/Class;I)Ljava/lang/Object;") ||
+           signature.equals("(Ljava/lang/Class;[I)Ljava/lang/Object;"))) {
+        // stack: ... class count-or-dims
+        invokeHelper(new AllocationClassAdapter.OutlinedHelper(
+            "newInstance" + signature, signature) {
+          @Override
+          void emitBody(MethodVisitor mv, AllocationMethodAdapter aimv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitVarInsn(
+                signature.indexOf("[I") < 0 ? Opcodes.ILOAD : Opcodes.ALOAD, 1);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                "java/lang/reflect/Array", "newInstance", signature, false);
+            mv.visitInsn(Opcodes.ARETURN);
+          }
+        });
+        // -> stack: ... newobj
+        return;
+      }
       if (signature.equals("(Ljava/lang/Class;I)Ljava/lang/Object;")) {
 
         Label beginScopeLabel = new Label();
@@ -259,8 +444,7 @@ class AllocationMethodAdapter extends MethodVisitor {
         // -> stack: ... newobj count newobj className
         super.visitInsn(Opcodes.SWAP);
         // -> stack: ... newobj count className newobj
-        super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
-            recorderMethod, RECORDER_SIGNATURE, false);
+        invokeRecorder(RECORDER_SIGNATURE);
         // -> stack: ... newobj
         return;
       } else if (signature.equals("(Ljava/lang/Class;[I)Ljava/lang/Object;")){
@@ -300,8 +484,7 @@ class AllocationMethodAdapter extends MethodVisitor {
         // -> stack: ... newobj product newobj className
         super.visitInsn(Opcodes.SWAP);
         // -> stack: ... newobj product className newobj
-        super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
-            recorderMethod, RECORDER_SIGNATURE, false);
+        invokeRecorder(RECORDER_SIGNATURE);
         // -> stack: ... newobj
         return;
       }
@@ -309,6 +492,7 @@ class AllocationMethodAdapter extends MethodVisitor {
 
     if (opcode == Opcodes.INVOKEVIRTUAL) {
       if ("clone".equals(name) && owner.startsWith("[")) {
+        countSite("clone", owner);
         super.visitMethodInsn(opcode, owner, name, signature, itf);
 
         int i = 0;
@@ -322,7 +506,7 @@ class AllocationMethodAdapter extends MethodVisitor {
           // -> stack: ... newobj
           super.visitTypeInsn(Opcodes.CHECKCAST, owner);
           // -> stack: ... arrayref
-          calculateArrayLengthAndDispatch(owner.substring(i), i);
+          calculateArrayLengthAndDispatch(owner, owner.substring(i), i);
         } else {
           // -> stack: ... newobj
           super.visitInsn(Opcodes.DUP);
@@ -357,6 +541,115 @@ class AllocationMethodAdapter extends MethodVisitor {
     super.visitMethodInsn(opcode, owner, name, signature, itf);
   }
 
+  // Hooks the calls that allocate or free memory outside the heap.  Returns
+  // false, having emitted nothing, if the call isn't one of them.
+  private boolean instrumentOffHeapCall(int opcode, String owner, String name,
+      String signature, boolean itf) {
+    if (trackBuffers && opcode == Opcodes.INVOKESTATIC &&
+        owner.equals("java/nio/ByteBuffer") && name.equals("allocateDirect") &&
+        signature.equals("(I)Ljava/nio/ByteBuffer;")) {
+      super.visitMethodInsn(opcode, owner, name, signature, itf);
+      // -> stack: ... buffer
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, OFF_HEAP_RECORDER,
+          "recordDirectBuffer", "(Ljava/nio/ByteBuffer;)Ljava/nio/ByteBuffer;",
+          false);
+      // -> stack: ... buffer
+      return true;
+    }
+    if (trackBuffers && opcode == Opcodes.INVOKEVIRTUAL &&
+        owner.equals("java/nio/channels/FileChannel") && name.equals("map") &&
+        signature.equals("(Ljava/nio/channels/FileChannel$MapMode;JJ)" +
+            "Ljava/nio/MappedByteBuffer;")) {
+      super.visitMethodInsn(opcode, owner, name, signature, itf);
+      // -> stack: ... buffer
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, OFF_HEAP_RECORDER,
+          "recordMappedBuffer",
+          "(Ljava/nio/MappedByteBuffer;)Ljava/nio/MappedByteBuffer;", false);
+      // -> stack: ... buffer
+      return true;
+    }
+    if (!trackUnsafe || opcode != Opcodes.INVOKEVIRTUAL ||
+        !owner.equals("sun/misc/Unsafe")) {
+      return false;
+    }
+    if (name.equals("allocateMemory") && signature.equals("(J)J")) {
+      // stack: ... unsafe bytes
+      super.visitInsn(Opcodes.DUP2_X1);
+      // -> stack: ... bytes unsafe bytes
+      super.visitMethodInsn(opcode, owner, name, signature, itf);
+      // -> stack: ... bytes address
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, OFF_HEAP_RECORDER,
+          "recordAllocateMemory", "(JJ)J", false);
+      // -> stack: ... address
+      return true;
+    }
+    if (name.equals("freeMemory") && signature.equals("(J)V")) {
+      // stack: ... unsafe address
+      super.visitInsn(Opcodes.DUP2_X1);
+      // -> stack: ... address unsafe address
+      super.visitMethodInsn(opcode, owner, name, signature, itf);
+      // -> stack: ... address
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, OFF_HEAP_RECORDER,
+          "recordFreeMemory", "(J)V", false);
+      // -> stack: ...
+      return true;
+    }
+    if (name.equals("reallocateMemory") && signature.equals("(JJ)J")) {
+      Label beginScopeLabel = new Label();
+      Label endScopeLabel = new Label();
+      super.visitLabel(beginScopeLabel);
+
+      int bytesIndex = newLocal("J", beginScopeLabel, endScopeLabel);
+      int addressIndex = newLocal("J", beginScopeLabel, endScopeLabel);
+      // stack: ... unsafe address bytes
+      super.visitVarInsn(Opcodes.LSTORE, bytesIndex);
+      super.visitVarInsn(Opcodes.LSTORE, addressIndex);
+      // -> stack: ... unsafe
+      super.visitVarInsn(Opcodes.LLOAD, addressIndex);
+      super.visitVarInsn(Opcodes.LLOAD, bytesIndex);
+      // -> stack: ... unsafe address bytes
+      super.visitMethodInsn(opcode, owner, name, signature, itf);
+      // -> stack: ... newAddress
+      super.visitVarInsn(Opcodes.LLOAD, addressIndex);
+      super.visitVarInsn(Opcodes.LLOAD, bytesIndex);
+      super.visitLabel(endScopeLabel);
+      // -> stack: ... newAddress address bytes
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, OFF_HEAP_RECORDER,
+          "recordReallocateMemory", "(JJJ)J", false);
+      // -> stack: ... newAddress
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Lambdas are compiled to invokedynamic instructions whose bootstrap
+   * method spins the code that allocates, so we record their results at the
+   * call site.  Lambdas that capture nothing are created once and shared, so
+   * only capturing ones are recorded, as instances of the functional
+   * interface, with a count of -1.
+   */
+  @Override
+  public void visitInvokeDynamicInsn(String name, String desc, Handle bsm,
+      Object... bsmArgs) {
+    super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    if (!trackLambdas) {
+      return;
+    }
+    if (bsm.getOwner().equals("java/lang/invoke/LambdaMetafactory") &&
+        Type.getArgumentTypes(desc).length > 0) {
+      String result = Type.getReturnType(desc).getInternalName();
+      countSite("invokedynamic", result);
+      // stack: ... newobj
+      super.visitInsn(Opcodes.ICONST_M1);
+      // -> stack: ... newobj -1
+      super.visitInsn(Opcodes.SWAP);
+      // -> stack: ... -1 newobj
+      invokeRecordAllocation(result);
+      // -> stack: ... newobj
+    }
+  }
+
   /**
    * new and anewarray bytecodes take a String operand for the type of
    * the object or array element so we hook them here.  Note that new doesn't
@@ -371,9 +664,16 @@ class AllocationMethodAdapter extends MethodVisitor {
       // must be initialized with a ctor before we can touch it (Verifier
       // enforces this).  Instead, we just note it and tag following
       // initialization.
+      countSite("new", typeName);
       super.visitTypeInsn(opcode, typeName);
       ++outstandingAllocs;
     } else if (opcode == Opcodes.ANEWARRAY) {
+      countSite("anewarray", typeName);
+      if (noEscape) {
+        invokeRecordAllocationBefore(typeName);
+        super.visitTypeInsn(opcode, typeName);
+        return;
+      }
       super.visitInsn(Opcodes.DUP);
       super.visitTypeInsn(opcode, typeName);
       invokeRecordAllocation(typeName);
@@ -412,30 +712,63 @@ class AllocationMethodAdapter extends MethodVisitor {
     return newLocal(Type.getType(typeDescriptor), typeDescriptor, begin, end);
   }
 
-  private static final Pattern namePattern =
-      Pattern.compile("^\\[*L([^;]+);$");
-
   // Helper method to actually invoke the recorder function for an allocation
   // event.
   // pre: stack: ... count newobj
   // post: stack: ... newobj
   private void invokeRecordAllocation(String typeName) {
-    Matcher matcher = namePattern.matcher(typeName);
-    if (matcher.find()) {
-      typeName = matcher.group(1);
-    }
     // stack: ... count newobj
     super.visitInsn(Opcodes.DUP_X1);
     // -> stack: ... newobj count newobj
-    super.visitLdcInsn(typeName);
+    super.visitLdcInsn(recordedName(typeName));
     // -> stack: ... newobj count newobj typename
     super.visitInsn(Opcodes.SWAP);
     // -> stack: ... newobj count typename newobj
-    super.visitMethodInsn(Opcodes.INVOKESTATIC,
-        recorderClass, recorderMethod, RECORDER_SIGNATURE, false);
+    invokeRecorder(RECORDER_SIGNATURE);
     // -> stack: ... newobj
   }
 
+  // Helper method to invoke the recorder function that doesn't take the new
+  // array, before the array is allocated.
+  // pre: stack: ... count
+  // post: stack: ... count
+  private void invokeRecordAllocationBefore(String typeName) {
+    super.visitInsn(Opcodes.DUP);
+    // -> stack: ... count count
+    super.visitLdcInsn(recordedName(typeName));
+    // -> stack: ... count count typename
+    invokeRecorder(NO_ESCAPE_RECORDER_SIGNATURE);
+    // -> stack: ... count
+  }
+
+  // Helper method to call the recorder with the given signature.  If
+  // allocations are charged to class loaders, the number of the loader is
+  // passed as well, to the overload that takes it last.
+  // pre: stack: ... recorder-args
+  // post: stack: ...
+  private void invokeRecorder(String signature) {
+    if (loader >= 0) {
+      pushInt(loader);
+      signature = signature.replace(")V", "I)V");
+    }
+    super.visitMethodInsn(Opcodes.INVOKESTATIC,
+        recorderClass, recorderMethod, signature, false);
+  }
+
+  // Descriptors of classes and arrays of classes are reduced to the class
+  // name: [[Ljava/lang/String; becomes java/lang/String.
+  private static String recordedName(String typeName) {
+    int start = 0;
+    while (start < typeName.length() && typeName.charAt(start) == '[') {
+      start++;
+    }
+    if (typeName.startsWith("L", start) && typeName.endsWith(";") &&
+        typeName.indexOf(';') == typeName.length() - 1) {
+      return typeName.substring(start + 1, typeName.length() - 1);
+    }
+    return typeName;
+  }
+
   /**
    * multianewarray gets its very own visit method in the ASM framework, so we
    * hook it here.  This bytecode is different from most in that it consumes a
@@ -444,13 +777,71 @@ class AllocationMethodAdapter extends MethodVisitor {
    */
   @Override
   public void visitMultiANewArrayInsn(String typeName, int dimCount) {
+    countSite("multianewarray", typeName);
     // stack: ... dim1 dim2 dim3 ... dimN
     super.visitMultiANewArrayInsn(typeName, dimCount);
     // -> stack: ... aref
-    calculateArrayLengthAndDispatch(typeName, dimCount);
+    calculateArrayLengthAndDispatch(typeName, typeName, dimCount);
+  }
+
+  @Override
+  public void visitLineNumber(int line, Label start) {
+    this.line = line;
+    super.visitLineNumber(line, start);
+  }
+
+  // Helper method to register an allocation site and count each visit to it,
+  // if sites are being counted.  The stack is left as it was.
+  private void countSite(String kind, String type) {
+    if (inventory == null) {
+      return;
+    }
+    pushInt(inventory.addSite(methodName, line, kind, type));
+    super.visitMethodInsn(Opcodes.INVOKESTATIC,
+        "com/google/monitoring/runtime/instrumentation/AllocationSites",
+        "hit", "(I)V", false);
   }
 
-  void calculateArrayLengthAndDispatch(String typeName, int dimCount) {
+  // Helper method to push a non-negative int constant.
+  private void pushInt(int value) {
+    if (value <= Short.MAX_VALUE) {
+      super.visitIntInsn(Opcodes.SIPUSH, value);
+    } else {
+      super.visitLdcInsn(value);
+    }
+  }
+
+  // Helper method to invoke an outlined helper in place of an
+  // instrumentation sequence.  The helper's descriptor determines what it
+  // consumes from and leaves on the stack.
+  private void invokeHelper(AllocationClassAdapter.OutlinedHelper helper) {
+    String helperName = outliner.requestHelper(helper);
+    super.visitMethodInsn(Opcodes.INVOKESTATIC, outliner.getClassName(),
+        helperName, helper.desc, false);
+  }
+
+  // pre: stack: ... aref (whose static type is arrayDesc)
+  // post: stack: ... aref
+  void calculateArrayLengthAndDispatch(
+      final String arrayDesc, final String typeName, final int dimCount) {
+    if (outliner != null) {
+      super.visitInsn(Opcodes.DUP);
+      // -> stack: ... aref aref
+      invokeHelper(new AllocationClassAdapter.OutlinedHelper(
+          "dispatch" + arrayDesc + " " + typeName + " " + dimCount,
+          "(" + arrayDesc + ")V") {
+        @Override
+        void emitBody(MethodVisitor mv, AllocationMethodAdapter aimv) {
+          mv.visitVarInsn(Opcodes.ALOAD, 0);
+          aimv.calculateArrayLengthAndDispatch(arrayDesc, typeName, dimCount);
+          mv.visitInsn(Opcodes.POP);
+          mv.visitInsn(Opcodes.RETURN);
+        }
+      });
+      // -> stack: ... aref
+      return;
+    }
+
     // Since the dimensions of the array are not known at instrumentation
     // time, we take the created multi-dimensional array and peel off nesting
     // levels from the left.  For each nesting layer we probe the array length
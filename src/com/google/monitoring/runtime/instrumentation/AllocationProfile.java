@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Sampler} that aggregates recorded allocations by allocated type
+ * and stack.
+ *
+ * <p>By default every type and stack is counted exactly.  Recording threads
+ * only update counters in a concurrent map, and {@link #snapshot()} copies
+ * the counters without blocking them.  The map grows with the number of
+ * distinct stacks, so a profile can instead be created with a fixed
+ * capacity, in which case only the heaviest types and stacks (by bytes
+ * allocated) are kept, in a {@link HeavyHitters} summary.  Their counts are
+ * then estimates, with an error bound reported by
+ * {@link Entry#getBytesError()}.
+ */
+public class AllocationProfile implements Sampler {
+  // Deepest stack kept for each allocation.
+  static final int MAX_STACK_DEPTH = 64;
+
+  private final ConcurrentMap<Key, Counts> counts;
+  private final HeavyHitters<Key> heaviest;
+
+  /**
+   * Creates a profile that counts every type and stack exactly.
+   */
+  public AllocationProfile() {
+    counts = new ConcurrentHashMap<Key, Counts>();
+    heaviest = null;
+  }
+
+  /**
+   * Creates a profile that keeps the types and stacks that allocate the most
+   * bytes, in memory proportional to maxEntries.
+   *
+   * @param maxEntries the number of types and stacks to keep.  For an
+   *   accurate top k, use several times k.
+   */
+  public AllocationProfile(int maxEntries) {
+    counts = null;
+    heaviest = new HeavyHitters<Key>(maxEntries);
+  }
+
+  @Override
+  public void sampleAllocation(int count, String desc, Object newObj,
+      long size) {
+    Key key = new Key(typeDesc(count, desc, newObj), count >= 0,
+        StackCapture.capture(MAX_STACK_DEPTH));
+    // Memory outside the heap is recorded whether or not the governor is
+    // sampling, so it stands for itself.
+    int weight =
+        OffHeapRecorder.isOffHeap(desc) ? 1 : OverheadGovernor.weight();
+    if (heaviest != null) {
+      heaviest.add(key, weight, weight * size,
+          weight * (long) Math.max(count, 0));
+      return;
+    }
+    Counts c = counts.get(key);
+    if (c == null) {
+      Counts newCounts = new Counts();
+      c = counts.putIfAbsent(key, newCounts);
+      if (c == null) {
+        c = newCounts;
+      }
+    }
+    c.add(weight, count, size);
+  }
+
+  /**
+   * Returns a copy of the counters accumulated so far.  Allocations recorded
+   * while the copy is being made may or may not be included.
+   */
+  public List<Entry> snapshot() {
+    if (heaviest != null) {
+      List<HeavyHitters.Counter<Key>> counters = heaviest.snapshot();
+      List<Entry> entries = new ArrayList<Entry>(counters.size());
+      for (HeavyHitters.Counter<Key> c : counters) {
+        entries.add(new Entry(c.key.type, c.key.array, c.key.stack,
+            c.count, c.extra, c.weight, c.error));
+      }
+      return entries;
+    }
+    List<Entry> entries = new ArrayList<Entry>(counts.size());
+    for (Map.Entry<Key, Counts> e : counts.entrySet()) {
+      Key key = e.getKey();
+      Counts c = e.getValue();
+      entries.add(new Entry(key.type, key.array, key.stack,
+          c.allocations.get(), c.elements.get(), c.bytes.get(), 0));
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the most bytes that any type and stack missing from
+   * {@link #snapshot()} can have allocated.  Always 0 for an exact profile.
+   */
+  public long getErrorBound() {
+    return heaviest != null ? heaviest.getErrorBound() : 0;
+  }
+
+  /**
+   * Returns whether the profile only keeps the heaviest types and stacks.
+   * The totals of a bounded profile are estimates, and can go down when an
+   * entry is replaced.
+   */
+  public boolean isBounded() {
+    return heaviest != null;
+  }
+
+  /**
+   * Discards all of the counters accumulated so far.
+   */
+  public void clear() {
+    if (heaviest != null) {
+      heaviest.clear();
+    } else {
+      counts.clear();
+    }
+  }
+
+  /**
+   * The counters for one allocated type and stack, as of a snapshot.
+   */
+  public static final class Entry {
+    private final String type;
+    private final boolean array;
+    private final StackTraceElement[] stack;
+    private final long allocations;
+    private final long elements;
+    private final long bytes;
+    private final long bytesError;
+
+    Entry(String type, boolean array, StackTraceElement[] stack,
+        long allocations, long elements, long bytes, long bytesError) {
+      this.type = type;
+      this.array = array;
+      this.stack = stack;
+      this.allocations = allocations;
+      this.elements = elements;
+      this.bytes = bytes;
+      this.bytesError = bytesError;
+    }
+
+    /**
+     * The descriptor of the allocated type.  For arrays, this is the type
+     * of the elements, which may itself be an array.
+     */
+    public String getType() {
+      return type;
+    }
+
+    /** Whether arrays of {@link #getType()} were allocated. */
+    public boolean isArray() {
+      return array;
+    }
+
+    /**
+     * The type as it would be written in Java source, for example
+     * {@code java.lang.String[]}.
+     */
+    public String getTypeName() {
+      return typeName(type, array);
+    }
+
+    /** The allocating stack, innermost frame first. */
+    public StackTraceElement[] getStack() {
+      return stack.clone();
+    }
+
+    StackTraceElement[] stack() {
+      return stack;
+    }
+
+    /** The number of allocations. */
+    public long getAllocations() {
+      return allocations;
+    }
+
+    /** The total number of array elements allocated. */
+    public long getElements() {
+      return elements;
+    }
+
+    /** The total number of bytes allocated. */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * How much {@link #getBytes()} may overestimate the bytes allocated, for
+     * a profile with a fixed capacity; the true value is at least
+     * {@code getBytes() - getBytesError()}.  The other counts may be
+     * overestimated in proportion.  0 for an exact profile.
+     */
+    public long getBytesError() {
+      return bytesError;
+    }
+  }
+
+  // Primitive type descriptors, and the names they stand for.
+  private static final String PRIMITIVE_DESCRIPTORS = "ZCFDBSIJ";
+  private static final String[] PRIMITIVE_NAMES = new String[] {
+    "boolean", "char", "float", "double", "byte", "short", "int", "long"
+  };
+
+  /**
+   * Returns the Java source name of an allocation passed to a sampler.
+   */
+  static String typeName(int count, String desc, Object newObj) {
+    return typeName(typeDesc(count, desc, newObj), count >= 0);
+  }
+
+  /**
+   * Returns the descriptor to name an allocation by.  For an array, that is
+   * the type of its elements, taken from the array itself when the sampler
+   * is passed one.  The recorder isn't always passed the element type:
+   * multianewarray passes the descriptor of the array ("[[I"), while clones
+   * of multi-dimensional arrays and Array.newInstance(Class, int...) pass
+   * the innermost component type, and arrays of object arrays are reduced
+   * to the class name.
+   */
+  static String typeDesc(int count, String desc, Object newObj) {
+    if (count >= 0 && newObj != null && newObj.getClass().isArray()) {
+      return AllocationHelpers.getInternalName(
+          newObj.getClass().getComponentType());
+    }
+    return desc;
+  }
+
+  /**
+   * Returns the Java source name of a type.  It can be a primitive name
+   * ("int"), an internal name ("java/lang/String"), a primitive descriptor
+   * ("I") or an array descriptor ("[I").  For arrays, it is the type of the
+   * elements, which may itself be an array: an int[][] is an array of "[I".
+   *
+   * @param array whether an array of the type was allocated.
+   */
+  static String typeName(String desc, boolean array) {
+    int dims = 0;
+    while (dims < desc.length() && desc.charAt(dims) == '[') {
+      dims++;
+    }
+    String base = desc.substring(dims);
+    if (dims > 0 && base.startsWith("L") && base.endsWith(";")) {
+      base = base.substring(1, base.length() - 1);
+    }
+    int primitive = base.length() == 1 ?
+        PRIMITIVE_DESCRIPTORS.indexOf(base.charAt(0)) : -1;
+    StringBuilder name = new StringBuilder(
+        primitive >= 0 ? PRIMITIVE_NAMES[primitive] : base.replace('/', '.'));
+    for (int i = 0; i < dims; i++) {
+      name.append("[]");
+    }
+    if (array) {
+      name.append("[]");
+    }
+    return name.toString();
+  }
+
+  private static final class Key {
+    final String type;
+    final boolean array;
+    final StackTraceElement[] stack;
+    final int hash;
+
+    Key(String type, boolean array, StackTraceElement[] stack) {
+      this.type = type;
+      this.array = array;
+      this.stack = stack;
+      this.hash = (type.hashCode() * 31 + Arrays.hashCode(stack)) * 2 +
+          (array ? 1 : 0);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) o;
+      return hash == that.hash && array == that.array &&
+          type.equals(that.type) && Arrays.equals(stack, that.stack);
+    }
+  }
+
+  private static final class Counts {
+    final AtomicLong allocations = new AtomicLong();
+    final AtomicLong elements = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+
+    void add(int weight, int count, long size) {
+      allocations.addAndGet(weight);
+      if (count > 0) {
+        elements.addAndGet(weight * (long) count);
+      }
+      bytes.addAndGet(weight * size);
+    }
+  }
+}
@@ -17,7 +17,11 @@
 package com.google.monitoring.runtime.instrumentation;
 
 import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -58,8 +62,39 @@ public class AllocationRecorder {
     instrumentation = inst;
   }
 
-  // Used for reentrancy checks
-  private static final ThreadLocal<Boolean> recordingAllocation = new ThreadLocal<Boolean>();
+  /**
+   * The recorder's per-thread state.  Everything the recorder needs to know
+   * about the allocating thread is a field of this object, so that it costs
+   * a single ThreadLocal lookup per recorded allocation.
+   */
+  static final class ThreadState {
+    // Used for reentrancy checks
+    boolean recording;
+    // The tag that allocations are charged to, or null
+    AllocationTag tag;
+    // The innermost open budget scope, or null
+    AllocationBudget.Scope budget;
+    // Allocations left to skip while the governor is sampling
+    int skip;
+    // Allocations sampled, for timing one in so many of them
+    int events;
+    // Open AllocationAssertions, the bytes allocated on this thread while
+    // recording, which they leave out, and what reading that costs
+    int metered;
+    long agentBytes;
+    long readCost;
+    // The stack of the event being recorded, shared by its samplers; see
+    // StackCapture
+    StackTraceElement[] stack;
+  }
+
+  private static final ThreadLocal<ThreadState> threadState =
+      new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+          return new ThreadState();
+        }
+      };
   
   // Will only record array allocations of at least this size
   public static volatile int minArraySize;
@@ -67,6 +102,204 @@ public class AllocationRecorder {
   // Maximum number of stack traces
   public static AtomicInteger stackTracesRemaining = new AtomicInteger();
 
+  // Whether allocations are printed to stderr
+  public static volatile boolean printAllocations = true;
+
+  // Whether objects other than arrays (lambdas and boxes) are printed as
+  // well.  There can be one per boxed value, so only if asked for.
+  static volatile boolean printObjects;
+
+  // Samplers that are called for every recorded allocation.  Copy-on-write,
+  // so that the allocation path can read it without locking.
+  private static volatile Sampler[] samplers = new Sampler[0];
+
+  /**
+   * Adds a {@link Sampler} that will get run <b>every time an allocation is
+   * recorded</b>.
+   *
+   * @param sampler The sampler to add.
+   */
+  public static synchronized void addSampler(Sampler sampler) {
+    Sampler[] newSamplers = Arrays.copyOf(samplers, samplers.length + 1);
+    newSamplers[samplers.length] = sampler;
+    samplers = newSamplers;
+  }
+
+  /**
+   * Removes the given {@link Sampler}.
+   *
+   * @param sampler The sampler to remove.
+   * @return whether the sampler had been added.
+   */
+  public static synchronized boolean removeSampler(Sampler sampler) {
+    List<Sampler> remaining = new ArrayList<Sampler>(Arrays.asList(samplers));
+    boolean removed = remaining.remove(sampler);
+    samplers = remaining.toArray(new Sampler[remaining.size()]);
+    return removed;
+  }
+
+  /**
+   * Stops allocations made by the current thread from being recorded.  Used
+   * for the agent's own background threads.
+   */
+  static void suppressRecordingOnCurrentThread() {
+    threadState.get().recording = true;
+  }
+
+  static ThreadState getThreadState() {
+    return threadState.get();
+  }
+
+  /**
+   * Charges allocations recorded on the current thread to the named tag,
+   * until the returned scope is closed.
+   *
+   * @param tag the name of the tag, for example "endpoint=/search".
+   * @return the scope, which must be closed on this thread.
+   */
+  public static AllocationScope tag(String tag) {
+    return tag(AllocationTag.forName(tag));
+  }
+
+  /**
+   * Charges allocations recorded on the current thread to the given tag,
+   * until the returned scope is closed.
+   */
+  public static AllocationScope tag(AllocationTag tag) {
+    return new AllocationScope(threadState.get(), tag, true);
+  }
+
+  // Makes the tag active for a task that continues work started under it on
+  // another thread.
+  private static AllocationScope resume(AllocationTag tag) {
+    return new AllocationScope(threadState.get(), tag, false);
+  }
+
+  /**
+   * Returns the tag that allocations on the current thread are charged to,
+   * or null if there isn't one.
+   */
+  public static AllocationTag currentTag() {
+    return threadState.get().tag;
+  }
+
+  /**
+   * Returns a task that runs the given one with the current thread's tag
+   * active, so that tasks handed to other threads are charged to the tag
+   * of the code that created them.
+   */
+  public static Runnable wrap(final Runnable task) {
+    final AllocationTag tag = currentTag();
+    if (tag == null) {
+      return task;
+    }
+    return new Runnable() {
+      @Override
+      public void run() {
+        AllocationScope scope = resume(tag);
+        try {
+          task.run();
+        } finally {
+          scope.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a task that calls the given one with the current thread's tag
+   * active.
+   *
+   * @see #wrap(Runnable)
+   */
+  public static <V> Callable<V> wrap(final Callable<V> task) {
+    final AllocationTag tag = currentTag();
+    if (tag == null) {
+      return task;
+    }
+    return new Callable<V>() {
+      @Override
+      public V call() throws Exception {
+        AllocationScope scope = resume(tag);
+        try {
+          return task.call();
+        } finally {
+          scope.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns an executor that runs each task with the tag that was active on
+   * the thread that submitted it.
+   */
+  public static Executor wrap(final Executor executor) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        executor.execute(wrap(task));
+      }
+    };
+  }
+
+
+  // The usual size of an array's header, for estimating array sizes.
+  private static final int ARRAY_HEADER_SIZE = 16;
+
+  // Returns the size of the object.
+  private static long sizeOf(Instrumentation instr, Object obj) {
+    long size = instr.getObjectSize(obj);
+    if (obj instanceof Object[]
+        && obj.getClass().getComponentType().isArray()) {
+      // A multi-dimensional array is recorded once, with the elements of all
+      // of its dimensions, so the arrays it holds are counted too.  (Clones
+      // are recorded the same way, although they share the inner arrays.)
+      for (Object element : (Object[]) obj) {
+        if (element != null) {
+          size += sizeOf(instr, element);
+        }
+      }
+    }
+    return size;
+  }
+
+  // The size of a reference in an array, measured on first use.
+  private static volatile int referenceSize;
+
+  // Estimates the size of an array that the recorder hasn't seen.
+  private static long arraySize(Instrumentation instr, int count,
+      String desc) {
+    int elementSize;
+    if (desc.equals("boolean") || desc.equals("byte")) {
+      elementSize = 1;
+    } else if (desc.equals("char") || desc.equals("short")) {
+      elementSize = 2;
+    } else if (desc.equals("int") || desc.equals("float")) {
+      elementSize = 4;
+    } else if (desc.equals("long") || desc.equals("double")) {
+      elementSize = 8;
+    } else {
+      elementSize = referenceSize;
+      if (elementSize == 0) {
+        // 4 with compressed references, 8 without.
+        elementSize = (int) (instr.getObjectSize(new Object[2])
+            - instr.getObjectSize(new Object[0])) / 2;
+        referenceSize = elementSize;
+      }
+    }
+    return (ARRAY_HEADER_SIZE + (long) count * elementSize + 7) & ~7;
+  }
+
+  /**
+   * Passes an allocation of memory outside the heap to the samplers.  Called
+   * by {@link OffHeapRecorder} while the current thread is recording.
+   */
+  static void sampleNativeAllocation(String desc, Object buffer, long bytes) {
+    for (Sampler sampler : samplers) {
+      sampler.sampleAllocation(-1, desc, buffer, bytes);
+    }
+  }
 
   /**
    * Records the allocation.  This method is invoked on every allocation
@@ -81,34 +314,158 @@ public class AllocationRecorder {
    *   recorded.
    */
   public static void recordAllocation(int count, String desc, Object newObj) {
-	 if (count < minArraySize) {
-		 return;
-	 }
-	  
-    if (recordingAllocation.get() == Boolean.TRUE) {
+    record(count, desc, newObj, -1);
+  }
+
+  /**
+   * Records the allocation, charging it to the class loader of the
+   * allocating class.  Called instead of
+   * {@link #recordAllocation(int, String, Object)} when the agent is started
+   * with {@code loaders=true}.
+   *
+   * @param loader the number {@link LoaderAttribution} gave the loader.
+   */
+  public static void recordAllocation(
+      int count, String desc, Object newObj, int loader) {
+    record(count, desc, newObj, loader);
+  }
+
+  /**
+   * Records the allocation of an array without seeing the array, so that the
+   * instrumentation doesn't make it escape and the JIT can still eliminate
+   * it.  Used when the agent is started with {@code noEscape=true}, and
+   * called before the allocation rather than after it.  The array's size is
+   * estimated from its length and element type, and samplers are passed
+   * null for the new object.
+   *
+   * @param count the length of the array.
+   * @param desc the element type: the name of a primitive type, or the
+   *   internal name of a class or the descriptor of an array type.
+   */
+  public static void recordAllocation(int count, String desc) {
+    // A negative length throws instead of allocating.
+    if (count >= 0) {
+      record(count, desc, null, -1);
+    }
+  }
+
+  /**
+   * Records the allocation of an array without seeing the array, charging it
+   * to the class loader of the allocating class.  Called instead of
+   * {@link #recordAllocation(int, String)} when the agent is started with
+   * {@code loaders=true}.
+   *
+   * @param loader the number {@link LoaderAttribution} gave the loader.
+   */
+  public static void recordAllocation(int count, String desc, int loader) {
+    if (count >= 0) {
+      record(count, desc, null, loader);
+    }
+  }
+
+  private static void record(
+      int count, String desc, Object newObj, int loader) {
+    // Small arrays are only of interest to threads with an allocation budget.
+    // Objects that aren't arrays are only recorded when they're hooked
+    // specially (lambdas and boxing, see AllocationMethodAdapter), so they
+    // always pass.
+    boolean stats = AgentStats.enabled;
+    if (stats) {
+      AgentStats.event();
+    }
+    boolean belowMinimum = count >= 0 && count < minArraySize;
+    if (belowMinimum && !AllocationBudget.used) {
+      if (stats) {
+        AgentStats.belowMinimum();
+      }
       return;
-    } 
-      
-    
-    recordingAllocation.set(Boolean.TRUE);
-
-    // Copy value into local variable to prevent NPE that occurs when
-    // instrumentation field is set to null by this class's shutdown hook
-    // after another thread passed the null check but has yet to call
-    // instrumentation.getObjectSize()
-    Instrumentation instr = instrumentation;
-    if (instr != null) {
-    	System.err.println("Allocating array " + desc + " of " + count + " elements");
-    	int str;
-    	if ((str = stackTracesRemaining.get()) > 0) {
-    		StackTraceElement[] st = Thread.currentThread().getStackTrace();
-    		String stString = Arrays.toString(st);
-    		System.err.println(stString);
-    		stackTracesRemaining.compareAndSet(str, str-1);
-    	}
     }
 
-    recordingAllocation.set(Boolean.FALSE);
+    ThreadState state = threadState.get();
+    if (state.recording) {
+      if (stats) {
+        AgentStats.reentrant();
+      }
+      return;
+    }
+    if (belowMinimum && state.budget == null) {
+      if (stats) {
+        AgentStats.belowMinimum();
+      }
+      return;
+    }
+
+    state.recording = true;
+    long meteredStart =
+        state.metered > 0 ? AllocationAssertions.threadAllocatedBytes() : 0;
+    StackCapture.beginEvent(state);
+    try {
+      // Allocations that the governor skips still count against a budget.
+      boolean sampled = !belowMinimum && OverheadGovernor.sample(state);
+      if (!sampled && state.budget == null) {
+        return;
+      }
+      boolean timed = sampled && OverheadGovernor.timing
+          && (++state.events & OverheadGovernor.TIMING_MASK) == 0;
+      long start = timed ? System.nanoTime() : 0;
+      // Copy value into local variable to prevent NPE that occurs when
+      // instrumentation field is set to null by this class's shutdown hook
+      // after another thread passed the null check but has yet to call
+      // instrumentation.getObjectSize()
+      Instrumentation instr = instrumentation;
+      if (instr != null) {
+        long size = -1;
+        if (sampled) {
+          if (printAllocations && (count >= 0 || printObjects)) {
+            System.err.println(count < 0 ? "Allocating " + desc :
+                "Allocating array " + desc + " of " + count + " elements");
+            int str;
+            if ((str = stackTracesRemaining.get()) > 0) {
+              StackTraceElement[] st = Thread.currentThread().getStackTrace();
+              String stString = Arrays.toString(st);
+              System.err.println(stString);
+              stackTracesRemaining.compareAndSet(str, str-1);
+            }
+          }
+          Sampler[] samplers = AllocationRecorder.samplers;
+          AllocationTag tag = state.tag;
+          if (samplers.length > 0 || tag != null || loader >= 0) {
+            size = newObj != null
+                ? sizeOf(instr, newObj) : arraySize(instr, count, desc);
+            if (tag != null) {
+              tag.charge(OverheadGovernor.weight(), size);
+            }
+            if (loader >= 0) {
+              LoaderAttribution.charge(loader, OverheadGovernor.weight(), size);
+            }
+            for (Sampler sampler : samplers) {
+              sampler.sampleAllocation(count, desc, newObj, size);
+            }
+          }
+        }
+        if (state.budget != null) {
+          if (size < 0) {
+            size = newObj != null
+                ? sizeOf(instr, newObj) : arraySize(instr, count, desc);
+          }
+          state.budget.charge(desc, count, newObj, size);
+        }
+      }
+      if (timed) {
+        long nanos = System.nanoTime() - start;
+        OverheadGovernor.addTimedNanos(nanos);
+        if (stats) {
+          AgentStats.hookTimed(nanos);
+        }
+      }
+    } finally {
+      StackCapture.endEvent(state);
+      if (state.metered > 0) {
+        state.agentBytes += AllocationAssertions.threadAllocatedBytes()
+            - meteredStart + state.readCost;
+      }
+      state.recording = false;
+    }
   }
 
 }
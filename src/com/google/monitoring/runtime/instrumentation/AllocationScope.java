@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.Closeable;
+
+/**
+ * A region of code on one thread during which recorded allocations are
+ * charged to an {@link AllocationTag}.  Scopes nest: closing a scope makes
+ * the tag that was active when it was opened active again.  Scopes should be
+ * closed on the thread that opened them, in the reverse order in which they
+ * were opened, for example with try-with-resources:
+ *
+ * <pre>
+ * try (AllocationScope s = AllocationRecorder.tag("endpoint=/search")) {
+ *   ...
+ * }
+ * </pre>
+ */
+public final class AllocationScope implements Closeable {
+  private final AllocationRecorder.ThreadState state;
+  private final AllocationTag previous;
+
+  /**
+   * @param newScope whether this is a new use of the tag, as opposed to a
+   *   continuation of one on another thread.
+   */
+  AllocationScope(AllocationRecorder.ThreadState state, AllocationTag tag,
+      boolean newScope) {
+    this.state = state;
+    this.previous = state.tag;
+    if (newScope) {
+      tag.enter();
+    }
+    state.tag = tag;
+  }
+
+  /**
+   * Makes the tag that was active when this scope was opened active again.
+   */
+  @Override
+  public void close() {
+    state.tag = previous;
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An inventory of the allocation sites that {@link AllocationInstrumenter}
+ * instrumented, kept when it is started with {@code sites=true}.  Every
+ * allocation instruction and hooked call is given a number when its method
+ * is rewritten, with its class, method, line, kind and type, and the
+ * rewritten code counts each time the site is reached.
+ *
+ * <p>The report written at shutdown has the hottest sites, the sites that
+ * were never reached, the sites in classes that were left as they were
+ * because a method would have grown past 64K, and the classes that the
+ * agent's filters kept it from rewriting at all, with the number of
+ * allocation instructions in each.  Sites that are never reached are the
+ * ones to leave uninstrumented in the next run.
+ */
+public final class AllocationSites {
+  // Hit counts are kept in pages, so that the pages that exist never move
+  // and hit() doesn't need a lock.
+  private static final int PAGE_BITS = 10;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  // How many of the hottest sites are reported.
+  private static final int HOT_SITES = 50;
+
+  private static volatile AtomicLongArray[] hits = new AtomicLongArray[0];
+
+  // The description of each site, indexed by its number.  Names are shared
+  // between sites, so that the table stays small.  All guarded by the class
+  // lock.
+  private static String[] classes = new String[PAGE_SIZE];
+  private static String[] methods = new String[PAGE_SIZE];
+  private static String[] kinds = new String[PAGE_SIZE];
+  private static String[] types = new String[PAGE_SIZE];
+  private static int[] lines = new int[PAGE_SIZE];
+  private static String[] skipped = new String[PAGE_SIZE];
+  private static int count;
+  private static final Map<String, String> names =
+      new HashMap<String, String>();
+
+  // The classes that the filters kept from being rewritten, with the number
+  // of allocation instructions in each, or -1 if they couldn't be read.
+  private static final Map<String, Integer> filtered =
+      new TreeMap<String, Integer>();
+
+  private AllocationSites() {
+  }
+
+  /**
+   * Reports the inventory at shutdown.
+   *
+   * @param reportPath the file to write the report to; null means stderr.
+   */
+  static void install(String reportPath) {
+    new ShutdownReport() {
+      @Override
+      void write(PrintStream out) {
+        report(out);
+      }
+    }.writeAtShutdown("AllocationSiteReporter", reportPath);
+  }
+
+  /**
+   * Counts a visit to a site.  Called from instrumented code.
+   *
+   * @param site the number that {@link #register} gave the site.
+   */
+  public static void hit(int site) {
+    hits[site >>> PAGE_BITS].incrementAndGet(site & (PAGE_SIZE - 1));
+  }
+
+  /**
+   * Adds a site to the inventory.
+   *
+   * @param className the internal name of the class the site is in.
+   * @param method the name of the method the site is in.
+   * @param line the source line of the site, or 0 if it isn't known.
+   * @param kind the instruction or call that allocates, for example
+   *   "newarray" or "Array.newInstance".
+   * @param type the type that is allocated, or the element type of arrays.
+   * @return the number of the site, to be passed to {@link #hit}.
+   */
+  static synchronized int register(String className, String method, int line,
+      String kind, String type) {
+    int site = count++;
+    if (site == classes.length) {
+      int length = site * 2;
+      classes = Arrays.copyOf(classes, length);
+      methods = Arrays.copyOf(methods, length);
+      kinds = Arrays.copyOf(kinds, length);
+      types = Arrays.copyOf(types, length);
+      lines = Arrays.copyOf(lines, length);
+      skipped = Arrays.copyOf(skipped, length);
+    }
+    if ((site & (PAGE_SIZE - 1)) == 0) {
+      AtomicLongArray[] pages = Arrays.copyOf(hits, hits.length + 1);
+      pages[hits.length] = new AtomicLongArray(PAGE_SIZE);
+      hits = pages;
+    }
+    classes[site] = name(className);
+    methods[site] = name(method);
+    kinds[site] = kind;
+    types[site] = name(type);
+    lines[site] = line;
+    return site;
+  }
+
+  private static String name(String name) {
+    String shared = names.get(name);
+    if (shared == null) {
+      names.put(name, name);
+      shared = name;
+    }
+    return shared;
+  }
+
+  /**
+   * Marks sites whose class was left as it was.
+   *
+   * @param sites the numbers of the sites.
+   * @param reason why the class wasn't rewritten.
+   */
+  static synchronized void skip(List<Integer> sites, String reason) {
+    for (int site : sites) {
+      skipped[site] = reason;
+    }
+  }
+
+  /**
+   * Notes a class that the filters kept from being rewritten, and counts
+   * the allocation instructions in it.  Hooked calls, like
+   * {@code Array.newInstance}, aren't counted.
+   *
+   * @param className the internal name of the class.
+   * @param classBytes the class file.
+   */
+  static void classFiltered(String className, byte[] classBytes) {
+    // The agent's own classes are never rewritten.
+    if (className.startsWith("com/google/monitoring/runtime/instrumentation/")) {
+      return;
+    }
+    final int[] instructions = new int[1];
+    try {
+      new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM5) {
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc,
+            String signature, String[] exceptions) {
+          return new MethodVisitor(Opcodes.ASM5) {
+            @Override
+            public void visitTypeInsn(int opcode, String type) {
+              if (opcode == Opcodes.NEW || opcode == Opcodes.ANEWARRAY) {
+                instructions[0]++;
+              }
+            }
+
+            @Override
+            public void visitIntInsn(int opcode, int operand) {
+              if (opcode == Opcodes.NEWARRAY) {
+                instructions[0]++;
+              }
+            }
+
+            @Override
+            public void visitMultiANewArrayInsn(String desc, int dims) {
+              instructions[0]++;
+            }
+          };
+        }
+      }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    } catch (RuntimeException e) {
+      // Some class files are broken, and ASM can't read newer ones.
+      instructions[0] = -1;
+    }
+    if (instructions[0] != 0) {
+      synchronized (AllocationSites.class) {
+        filtered.put(className, instructions[0]);
+      }
+    }
+  }
+
+  /**
+   * Returns the sites in the inventory, the most visited first.
+   */
+  public static List<Site> getSites() {
+    List<Site> result = new ArrayList<Site>();
+    synchronized (AllocationSites.class) {
+      AtomicLongArray[] pages = hits;
+      for (int i = 0; i < count; i++) {
+        result.add(new Site(classes[i], methods[i], lines[i], kinds[i],
+            types[i], skipped[i],
+            pages[i >>> PAGE_BITS].get(i & (PAGE_SIZE - 1))));
+      }
+    }
+    Collections.sort(result, new Comparator<Site>() {
+      @Override
+      public int compare(Site a, Site b) {
+        if (a.hits != b.hits) {
+          return a.hits < b.hits ? 1 : -1;
+        }
+        int c = a.className.compareTo(b.className);
+        return c != 0 ? c : a.line - b.line;
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Returns the classes that the filters kept from being rewritten, with
+   * the number of allocation instructions in each, or -1 if the class
+   * couldn't be read.  Classes without any are left out.
+   */
+  public static synchronized Map<String, Integer> getFilteredClasses() {
+    return new TreeMap<String, Integer>(filtered);
+  }
+
+  /**
+   * Prints the inventory in a human readable form.
+   */
+  public static void report(PrintStream out) {
+    List<Site> sites = getSites();
+    List<Site> hot = new ArrayList<Site>();
+    List<Site> cold = new ArrayList<Site>();
+    List<Site> skippedSites = new ArrayList<Site>();
+    Set<String> classNames = new HashSet<String>();
+    for (Site site : sites) {
+      classNames.add(site.className);
+      if (site.skipReason != null) {
+        skippedSites.add(site);
+      } else if (site.hits == 0) {
+        cold.add(site);
+      } else {
+        hot.add(site);
+      }
+    }
+    Map<String, Integer> filteredClasses = getFilteredClasses();
+
+    out.println("Allocation sites: " + sites.size() + " in " +
+        classNames.size() + " classes, " + hot.size() + " reached, " +
+        cold.size() + " never reached, " + skippedSites.size() +
+        " skipped; " + filteredClasses.size() + " classes filtered out");
+    out.println("Hottest sites:");
+    for (Site site : hot.subList(0, Math.min(HOT_SITES, hot.size()))) {
+      out.println("  " + site.hits + " " + site);
+    }
+    out.println("Sites never reached:");
+    for (Site site : cold) {
+      out.println("  " + site);
+    }
+    out.println("Sites skipped:");
+    for (Site site : skippedSites) {
+      out.println("  " + site + ": " + site.skipReason);
+    }
+    out.println("Classes filtered out:");
+    for (Map.Entry<String, Integer> entry : filteredClasses.entrySet()) {
+      out.println("  " + entry.getKey().replace('/', '.') + ": " +
+          (entry.getValue() < 0
+              ? "could not be read"
+              : entry.getValue() + " allocation instructions"));
+    }
+  }
+
+  /**
+   * An allocation site and the number of times it was reached.
+   */
+  public static final class Site {
+    private final String className;
+    private final String method;
+    private final int line;
+    private final String kind;
+    private final String type;
+    private final String skipReason;
+    private final long hits;
+
+    Site(String className, String method, int line, String kind, String type,
+        String skipReason, long hits) {
+      this.className = className;
+      this.method = method;
+      this.line = line;
+      this.kind = kind;
+      this.type = type;
+      this.skipReason = skipReason;
+      this.hits = hits;
+    }
+
+    /** The internal name of the class the site is in. */
+    public String getClassName() {
+      return className;
+    }
+
+    /** The name of the method the site is in. */
+    public String getMethod() {
+      return method;
+    }
+
+    /** The source line of the site, or 0 if it isn't known. */
+    public int getLine() {
+      return line;
+    }
+
+    /**
+     * The instruction or call that allocates: new, newarray, anewarray,
+     * multianewarray, clone, Array.newInstance, invokedynamic or valueOf.
+     */
+    public String getKind() {
+      return kind;
+    }
+
+    /** The type that is allocated, or the element type of arrays. */
+    public String getType() {
+      return type;
+    }
+
+    /** Why the site's class wasn't rewritten, or null if it was. */
+    public String getSkipReason() {
+      return skipReason;
+    }
+
+    /** The number of times the site was reached. */
+    public long getHits() {
+      return hits;
+    }
+
+    @Override
+    public String toString() {
+      return kind + " " + type + " at " + className.replace('/', '.') + "." +
+          method + (line > 0 ? ":" + line : "");
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A label, such as an RPC endpoint or a tenant, that recorded allocations
+ * are charged to while it is active on the allocating thread.  Tags are
+ * made active with {@link AllocationRecorder#tag(String)}, and there is one
+ * instance per name, so totals accumulate across every scope with that name.
+ */
+public final class AllocationTag {
+  private static final ConcurrentMap<String, AllocationTag> tags =
+      new ConcurrentHashMap<String, AllocationTag>();
+
+  private final String name;
+  private final AtomicLong scopes = new AtomicLong();
+  private final AtomicLong allocations = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+
+  private AllocationTag(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the tag with the given name, creating it if necessary.
+   */
+  public static AllocationTag forName(String name) {
+    AllocationTag tag = tags.get(name);
+    if (tag == null) {
+      AllocationTag newTag = new AllocationTag(name);
+      tag = tags.putIfAbsent(name, newTag);
+      if (tag == null) {
+        tag = newTag;
+      }
+    }
+    return tag;
+  }
+
+  /**
+   * Returns every tag created so far.
+   */
+  public static List<AllocationTag> getAll() {
+    return new ArrayList<AllocationTag>(tags.values());
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the number of times this tag has been made active, for example
+   * the number of requests to an endpoint.
+   */
+  public long getScopes() {
+    return scopes.get();
+  }
+
+  /** Returns the number of recorded allocations charged to this tag. */
+  public long getAllocations() {
+    return allocations.get();
+  }
+
+  /** Returns the number of bytes of recorded allocations charged to this tag. */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  void enter() {
+    scopes.incrementAndGet();
+  }
+
+  // Charges weight allocations of the given size, for allocations that
+  // stand for others that weren't recorded.
+  void charge(int weight, long size) {
+    allocations.addAndGet(weight);
+    bytes.addAndGet(weight * size);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * A {@link Sampler} that keeps the bytes allocated in each of the last few
+ * fixed intervals of time (windows), by type and by allocating site, along
+ * with the collections that happened in them.  Cumulative totals hide
+ * bursts; the timeline shows which site's burst came before a run of young
+ * collections or a full collection.
+ *
+ * <p>The timeline is a ring of windows that is allocated up front.  Each
+ * window keeps a fixed number of types and sites, and adds up the rest as
+ * "(other)", so the timeline's memory doesn't grow with the application.
+ * Recording threads never lock or wait: the first thread to record in a
+ * window that is being reused claims it with a compare-and-set and clears
+ * it.  Allocations recorded while that happens, and those whose window was
+ * reused while they were being added, are dropped and counted by
+ * {@link #getDropped()}.
+ *
+ * <p>Collections are taken from the collectors' notifications, which are
+ * available on HotSpot JVMs from Java 7 update 4, and are kept in a ring of
+ * their own.  Off-heap allocations are left out.
+ */
+public final class AllocationTimeline implements Sampler {
+  /** The default length of a window. */
+  public static final long DEFAULT_WINDOW_MILLIS = 1000;
+
+  /** The default number of windows kept. */
+  public static final int DEFAULT_WINDOWS = 120;
+
+  // The number of types and of sites kept for each window.  A power of two.
+  private static final int KEYS_PER_WINDOW = 32;
+
+  // How many slots are looked at for a type or site before giving up and
+  // counting it as "(other)".
+  private static final int MAX_PROBES = 8;
+
+  // The number of collections kept.
+  private static final int GC_EVENTS = 256;
+
+  // How many types and sites each window has in the report.
+  private static final int REPORTED_KEYS = 3;
+
+  private static final String GC_NOTIFICATION =
+      "com.sun.management.gc.notification";
+
+  // The number of a slot's window while it is being cleared.
+  private static final long CLEARING = -1;
+
+  private static volatile AllocationTimeline installed;
+
+  private final long windowMillis;
+  private final Slot[] slots;
+  private final AtomicReferenceArray<GcEvent> gcEvents =
+      new AtomicReferenceArray<GcEvent>(GC_EVENTS);
+  private final AtomicLong gcCount = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param windowMillis the length of a window.
+   * @param windows the number of windows kept.
+   */
+  public AllocationTimeline(long windowMillis, int windows) {
+    if (windowMillis <= 0 || windows <= 0) {
+      throw new IllegalArgumentException(
+          "windowMillis and windows must be positive");
+    }
+    this.windowMillis = windowMillis;
+    slots = new Slot[windows];
+    for (int i = 0; i < windows; i++) {
+      slots[i] = new Slot();
+    }
+  }
+
+  /**
+   * Returns the timeline set up by the agent's arguments, or null if there
+   * isn't one.
+   */
+  public static AllocationTimeline getInstalled() {
+    return installed;
+  }
+
+  /**
+   * Sets up the timeline from the agent's arguments, reporting it at
+   * shutdown.
+   *
+   * @param windowMillis the length of a window; null means 1000.
+   * @param windows the number of windows kept; null means 120.
+   * @param reportPath the file to write the report to; null means stderr.
+   */
+  static void install(String windowMillis, String windows,
+      String reportPath) {
+    final AllocationTimeline timeline = new AllocationTimeline(
+        windowMillis == null
+            ? DEFAULT_WINDOW_MILLIS : Long.parseLong(windowMillis),
+        windows == null ? DEFAULT_WINDOWS : Integer.parseInt(windows));
+    timeline.listenForGc();
+    AllocationRecorder.addSampler(timeline);
+    installed = timeline;
+    new ShutdownReport() {
+      @Override
+      void write(PrintStream out) {
+        timeline.report(out);
+      }
+    }.writeAtShutdown("AllocationTimelineReporter", reportPath);
+  }
+
+  @Override
+  public void sampleAllocation(int count, String desc, Object newObj,
+      long size) {
+    if (OffHeapRecorder.isOffHeap(desc)) {
+      return;
+    }
+    String type = AllocationProfile.typeName(count, desc, newObj);
+    String site = StackCapture.site(StackCapture.capture(1));
+    int weight = OverheadGovernor.weight();
+    long bytes = weight * size;
+    long window = System.currentTimeMillis() / windowMillis;
+    Slot slot = slots[(int) (window % slots.length)];
+    if (!slot.claim(window)) {
+      dropped.incrementAndGet();
+      return;
+    }
+    slot.allocations.addAndGet(weight);
+    slot.bytes.addAndGet(bytes);
+    slot.types.add(type, bytes);
+    slot.sites.add(site, bytes);
+    if (!slot.holds(window)) {
+      // The slot was cleared for a later window while this thread was adding
+      // to it, so some of the additions may have been lost with the old
+      // window or gone to the new one.
+      dropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the number of allocations that were not counted because their
+   * window was being cleared, had already been reused, or was reused while
+   * they were being counted.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Returns the windows that have allocations in them, oldest first, with
+   * the collections that started in them.
+   */
+  public List<Window> getWindows() {
+    List<GcEvent> events = getGcEvents();
+    List<Window> result = new ArrayList<Window>();
+    for (Slot slot : slots) {
+      Window w = slot.snapshot(windowMillis);
+      if (w != null) {
+        result.add(w);
+      }
+    }
+    Collections.sort(result, new Comparator<Window>() {
+      @Override
+      public int compare(Window a, Window b) {
+        return a.start < b.start ? -1 : (a.start > b.start ? 1 : 0);
+      }
+    });
+    // Collections in windows that are no longer kept are left out.
+    int next = 0;
+    for (GcEvent event : events) {
+      while (next < result.size() &&
+          result.get(next).start + windowMillis <= event.start) {
+        next++;
+      }
+      if (next == result.size()) {
+        break;
+      }
+      Window w = result.get(next);
+      if (event.start >= w.start) {
+        w.gcEvents.add(event);
+      }
+    }
+    return result;
+  }
+
+  // Returns the collections that are kept, oldest first.
+  private List<GcEvent> getGcEvents() {
+    List<GcEvent> events = new ArrayList<GcEvent>();
+    for (int i = 0; i < GC_EVENTS; i++) {
+      GcEvent event = gcEvents.get(i);
+      if (event != null) {
+        events.add(event);
+      }
+    }
+    Collections.sort(events, new Comparator<GcEvent>() {
+      @Override
+      public int compare(GcEvent a, GcEvent b) {
+        return a.start < b.start ? -1 : (a.start > b.start ? 1 : 0);
+      }
+    });
+    return events;
+  }
+
+  /**
+   * Prints the timeline in a human readable form.
+   */
+  public void report(PrintStream out) {
+    SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+    out.println("Allocation timeline, " + windowMillis + " ms windows:");
+    for (Window w : getWindows()) {
+      out.println(format.format(new Date(w.start)) + " " + w.bytes +
+          " bytes in " + w.allocations + " allocations");
+      printTop("sites", w.sites, out);
+      printTop("types", w.types, out);
+      for (GcEvent event : w.gcEvents) {
+        out.println("  GC at " + format.format(new Date(event.start)) + ": " +
+            event.name + ", " + event.action + " (" + event.cause + "), " +
+            event.duration + " ms, " + event.usedBefore + " -> " +
+            event.usedAfter + " bytes used");
+      }
+    }
+    if (dropped.get() > 0) {
+      out.println(dropped.get() + " allocations were dropped while their " +
+          "windows were being reused");
+    }
+  }
+
+  private static void printTop(String label, Map<String, Long> bytes,
+      PrintStream out) {
+    if (bytes.isEmpty()) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder("  ").append(label).append(':');
+    int n = 0;
+    for (Map.Entry<String, Long> e : bytes.entrySet()) {
+      if (n++ == REPORTED_KEYS) {
+        break;
+      }
+      sb.append(n > 1 ? ", " : " ").append(e.getKey()).append(' ')
+          .append(e.getValue());
+    }
+    out.println(sb);
+  }
+
+  private void listenForGc() {
+    final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+    NotificationListener listener = new NotificationListener() {
+      @Override
+      public void handleNotification(Notification n, Object handback) {
+        if (!GC_NOTIFICATION.equals(n.getType())) {
+          return;
+        }
+        // Notifications are delivered on a JVM thread that may run other
+        // listeners, so recording is only suppressed while this one runs.
+        AllocationRecorder.ThreadState state =
+            AllocationRecorder.getThreadState();
+        boolean wasRecording = state.recording;
+        state.recording = true;
+        try {
+          CompositeData info = (CompositeData) n.getUserData();
+          CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+          GcEvent event = new GcEvent(
+              jvmStart + (Long) gcInfo.get("startTime"),
+              (String) info.get("gcName"), (String) info.get("gcAction"),
+              (String) info.get("gcCause"), (Long) gcInfo.get("duration"),
+              used((TabularData) gcInfo.get("memoryUsageBeforeGc")),
+              used((TabularData) gcInfo.get("memoryUsageAfterGc")));
+          gcEvents.set(
+              (int) (gcCount.getAndIncrement() % GC_EVENTS), event);
+        } catch (RuntimeException e) {
+          // Not the notification we know; ignore it.
+        } finally {
+          state.recording = wasRecording;
+        }
+      }
+    };
+    for (GarbageCollectorMXBean collector :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (collector instanceof NotificationEmitter) {
+        ((NotificationEmitter) collector).addNotificationListener(
+            listener, null, null);
+      }
+    }
+  }
+
+  // Adds up the memory used in all of the pools.
+  private static long used(TabularData pools) {
+    long used = 0;
+    for (Object row : pools.values()) {
+      CompositeData usage =
+          (CompositeData) ((CompositeData) row).get("value");
+      used += (Long) usage.get("used");
+    }
+    return used;
+  }
+
+  // One window of the ring.  Its counters belong to the window whose number
+  // is in index.  A slot is cleared for a new window without waiting for
+  // threads that are still adding to it for the old one; those threads check
+  // index again when they are done, and count their allocation as dropped if
+  // it changed.  The slot is only reused once the ring comes round again, so
+  // that rarely happens.
+  private static final class Slot {
+    final AtomicLong index = new AtomicLong();
+    final AtomicLong allocations = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final Table types = new Table();
+    final Table sites = new Table();
+
+    // Returns whether the counters belong to the given window, clearing
+    // them if the slot last held an older one.  If so, the caller can add to
+    // them, and must then check holds(window).
+    boolean claim(long window) {
+      while (true) {
+        long current = index.get();
+        if (current == window) {
+          return true;
+        }
+        if (current == CLEARING || current > window) {
+          return false;
+        }
+        if (index.compareAndSet(current, CLEARING)) {
+          allocations.set(0);
+          bytes.set(0);
+          types.clear();
+          sites.clear();
+          index.set(window);
+          return true;
+        }
+      }
+    }
+
+    // Returns whether the counters still belong to the given window.
+    boolean holds(long window) {
+      return index.get() == window;
+    }
+
+    // Returns a copy of the counters, or null if the slot is empty or was
+    // reused while being copied.
+    Window snapshot(long windowMillis) {
+      long window = index.get();
+      if (window <= 0) {
+        return null;
+      }
+      Window w = new Window(window * windowMillis, allocations.get(),
+          bytes.get(), types.snapshot(), sites.snapshot());
+      return index.get() == window ? w : null;
+    }
+  }
+
+  // A fixed-size open addressing table of byte counts.
+  private static final class Table {
+    final AtomicReferenceArray<String> keys =
+        new AtomicReferenceArray<String>(KEYS_PER_WINDOW);
+    final AtomicLongArray bytes = new AtomicLongArray(KEYS_PER_WINDOW);
+    final AtomicLong other = new AtomicLong();
+
+    void add(String key, long n) {
+      int hash = key.hashCode();
+      for (int i = 0; i < MAX_PROBES; i++) {
+        int slot = (hash + i) & (KEYS_PER_WINDOW - 1);
+        String k = keys.get(slot);
+        if (k == null) {
+          if (keys.compareAndSet(slot, null, key)) {
+            bytes.addAndGet(slot, n);
+            return;
+          }
+          k = keys.get(slot);
+        }
+        if (key.equals(k)) {
+          bytes.addAndGet(slot, n);
+          return;
+        }
+      }
+      other.addAndGet(n);
+    }
+
+    void clear() {
+      for (int i = 0; i < KEYS_PER_WINDOW; i++) {
+        keys.set(i, null);
+        bytes.set(i, 0);
+      }
+      other.set(0);
+    }
+
+    // Returns the counts, largest first.
+    Map<String, Long> snapshot() {
+      List<Map.Entry<String, Long>> entries =
+          new ArrayList<Map.Entry<String, Long>>();
+      Map<String, Long> counts = new LinkedHashMap<String, Long>();
+      for (int i = 0; i < KEYS_PER_WINDOW; i++) {
+        String key = keys.get(i);
+        if (key != null) {
+          counts.put(key, bytes.get(i));
+        }
+      }
+      if (other.get() > 0) {
+        counts.put("(other)", other.get());
+      }
+      entries.addAll(counts.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> a,
+            Map.Entry<String, Long> b) {
+          return b.getValue().compareTo(a.getValue());
+        }
+      });
+      Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+      for (Map.Entry<String, Long> e : entries) {
+        sorted.put(e.getKey(), e.getValue());
+      }
+      return sorted;
+    }
+  }
+
+  /**
+   * The allocations and collections in one window, as of a snapshot.
+   */
+  public static final class Window {
+    private final long start;
+    private final long allocations;
+    private final long bytes;
+    private final Map<String, Long> types;
+    private final Map<String, Long> sites;
+    private final List<GcEvent> gcEvents = new ArrayList<GcEvent>();
+
+    Window(long start, long allocations, long bytes, Map<String, Long> types,
+        Map<String, Long> sites) {
+      this.start = start;
+      this.allocations = allocations;
+      this.bytes = bytes;
+      this.types = types;
+      this.sites = sites;
+    }
+
+    /** When the window started, in milliseconds since the epoch. */
+    public long getStartMillis() {
+      return start;
+    }
+
+    /** The number of allocations. */
+    public long getAllocations() {
+      return allocations;
+    }
+
+    /** The number of bytes allocated. */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /** The bytes allocated by type, largest first. */
+    public Map<String, Long> getTypes() {
+      return Collections.unmodifiableMap(types);
+    }
+
+    /** The bytes allocated by site, largest first. */
+    public Map<String, Long> getSites() {
+      return Collections.unmodifiableMap(sites);
+    }
+
+    /** The collections that started in the window, oldest first. */
+    public List<GcEvent> getGcEvents() {
+      return Collections.unmodifiableList(gcEvents);
+    }
+  }
+
+  /**
+   * A collection, as reported by the collector's notification.
+   */
+  public static final class GcEvent {
+    private final long start;
+    private final String name;
+    private final String action;
+    private final String cause;
+    private final long duration;
+    private final long usedBefore;
+    private final long usedAfter;
+
+    GcEvent(long start, String name, String action, String cause,
+        long duration, long usedBefore, long usedAfter) {
+      this.start = start;
+      this.name = name;
+      this.action = action;
+      this.cause = cause;
+      this.duration = duration;
+      this.usedBefore = usedBefore;
+      this.usedAfter = usedAfter;
+    }
+
+    /** When the collection started, in milliseconds since the epoch. */
+    public long getStartMillis() {
+      return start;
+    }
+
+    /** The collector, for example "G1 Young Generation". */
+    public String getName() {
+      return name;
+    }
+
+    /** What was collected, for example "end of minor GC". */
+    public String getAction() {
+      return action;
+    }
+
+    /** Why, for example "Allocation Failure". */
+    public String getCause() {
+      return cause;
+    }
+
+    /** How long the collection took, in milliseconds. */
+    public long getDurationMillis() {
+      return duration;
+    }
+
+    /** The memory used in all pools before the collection, in bytes. */
+    public long getUsedBefore() {
+      return usedBefore;
+    }
+
+    /** The memory used in all pools after the collection, in bytes. */
+    public long getUsedAfter() {
+      return usedAfter;
+    }
+  }
+}
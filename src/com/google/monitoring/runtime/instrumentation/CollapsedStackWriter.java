@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes an {@link AllocationProfile} in the folded ("collapsed") stack
+ * format read by flame graph tools: one line per stack, with the frames
+ * outermost first, separated by semicolons, followed by a space and the
+ * number of bytes allocated.  The allocated type is the innermost frame.
+ */
+final class CollapsedStackWriter {
+  private CollapsedStackWriter() { }
+
+  static void write(List<AllocationProfile.Entry> entries, Writer out)
+      throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (AllocationProfile.Entry entry : entries) {
+      line.setLength(0);
+      StackTraceElement[] stack = entry.stack();
+      for (int i = stack.length - 1; i >= 0; i--) {
+        line.append(stack[i].getClassName()).append('.')
+            .append(stack[i].getMethodName()).append(';');
+      }
+      line.append(entry.getTypeName()).append(' ')
+          .append(entry.getBytes()).append('\n');
+      out.write(line.toString());
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Estimates, from a {@link ProfileSnapshot}, how a generational collector
+ * would behave with different heap settings, so that settings can be
+ * compared without a load test for each.  Usage:
+ *
+ * <pre>
+ * java -cp allocation.jar \
+ *     com.google.monitoring.runtime.instrumentation.GcSimulator \
+ *     [--eden=SIZE,...] [--region=SIZE,...] [--tlab=SIZE,...] \
+ *     [--survivor-ratio=N] [--tenuring=N] [--allocation-rate=SIZE] SNAPSHOT
+ * </pre>
+ *
+ * <p>Sizes are in bytes, with an optional k, m or g suffix.  Every
+ * combination of the eden, region and TLAB sizes given (by default 256m, 4m
+ * and 256k) is simulated, and for each the simulator prints:
+ * <ul>
+ * <li>how often young collections happen: the bytes allocated in eden per
+ * second over the eden size;</li>
+ * <li>how often threads refill their TLABs, and how many allocations don't
+ * fit in a TLAB and take the slow path;</li>
+ * <li>how many allocations are humongous, that is at least half a region,
+ * and how many regions they take;</li>
+ * <li>if the snapshot has lifetimes, how many bytes survive each young
+ * collection, whether they fit in a survivor space (eden over the survivor
+ * ratio, 8 by default), and how many bytes per second are promoted, either
+ * after surviving the tenuring threshold (15 by default) or because the
+ * survivors overflowed.</li>
+ * </ul>
+ *
+ * <p>This is a model, not a collector.  The size of each allocation is the
+ * average for its site and type; TLABs have a fixed size, where HotSpot
+ * resizes them; and allocation is spread evenly over time.  The agent only
+ * records arrays and the allocations it hooks specially, so the recorded
+ * rate is lower than the heap's; {@code --allocation-rate} scales the
+ * profile up to the rate measured by other means, such as GC logs.
+ * Lifetimes are only known for the objects {@link LifetimeSampler} sampled
+ * (the agent's {@code lifetimes} argument); objects that were still live
+ * when the snapshot was written are assumed to live forever, and objects
+ * without lifetimes to die before the next collection.  Off-heap
+ * allocations ({@code offHeap=true}) don't use the heap, and are left out.
+ */
+public final class GcSimulator {
+  private long[] edens = { 256L << 20 };
+  private long[] regions = { 4L << 20 };
+  private long[] tlabs = { 256L << 10 };
+  private int survivorRatio = 8;
+  private int tenuring = 15;
+  private long allocationRate;
+
+  private GcSimulator() {
+  }
+
+  public static void main(String[] args) {
+    GcSimulator simulator = new GcSimulator();
+    List<String> paths = new ArrayList<String>();
+    try {
+      for (String arg : args) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        if (arg.startsWith("--eden=")) {
+          simulator.edens = sizes(value);
+        } else if (arg.startsWith("--region=")) {
+          simulator.regions = sizes(value);
+        } else if (arg.startsWith("--tlab=")) {
+          simulator.tlabs = sizes(value);
+        } else if (arg.startsWith("--survivor-ratio=")) {
+          simulator.survivorRatio = Integer.parseInt(value);
+        } else if (arg.startsWith("--tenuring=")) {
+          simulator.tenuring = Integer.parseInt(value);
+        } else if (arg.startsWith("--allocation-rate=")) {
+          simulator.allocationRate = size(value);
+        } else {
+          paths.add(arg);
+        }
+      }
+    } catch (NumberFormatException e) {
+      paths.clear();
+    }
+    if (paths.size() != 1 || simulator.survivorRatio < 1 ||
+        simulator.tenuring < 1) {
+      System.err.println("Usage: GcSimulator [--eden=SIZE,...] " +
+          "[--region=SIZE,...] [--tlab=SIZE,...] [--survivor-ratio=N] " +
+          "[--tenuring=N] [--allocation-rate=SIZE] SNAPSHOT");
+      System.exit(2);
+    }
+    try {
+      simulator.simulate(ProfileSnapshot.read(paths.get(0)));
+    } catch (IOException e) {
+      System.err.println("Could not read snapshot: " + e);
+      System.exit(2);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+    }
+  }
+
+  private static long[] sizes(String list) {
+    String[] parts = list.split(",");
+    long[] result = new long[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      result[i] = size(parts[i]);
+    }
+    return result;
+  }
+
+  private static long size(String size) {
+    String s = size.trim().toLowerCase(Locale.ROOT);
+    int shift = 0;
+    if (s.endsWith("k")) {
+      shift = 10;
+    } else if (s.endsWith("m")) {
+      shift = 20;
+    } else if (s.endsWith("g")) {
+      shift = 30;
+    }
+    if (shift > 0) {
+      s = s.substring(0, s.length() - 1);
+    }
+    long result = Long.parseLong(s) << shift;
+    if (result <= 0) {
+      throw new NumberFormatException(size);
+    }
+    return result;
+  }
+
+  private void simulate(ProfileSnapshot snapshot) {
+    double seconds = snapshot.getDurationNanos() / 1e9;
+    List<ProfileSnapshot.Entry> entries =
+        new ArrayList<ProfileSnapshot.Entry>();
+    for (ProfileSnapshot.Entry e : snapshot.getEntries()) {
+      if (!OffHeapRecorder.isOffHeapType(e.getType())) {
+        entries.add(e);
+      }
+    }
+    long total = 0;
+    long covered = 0;
+    for (ProfileSnapshot.Entry e : entries) {
+      total += e.getBytes();
+      if (e.getLifetimeMillis().length > 0) {
+        covered += e.getBytes();
+      }
+    }
+    if (seconds <= 0 || total == 0) {
+      throw new IllegalArgumentException("The snapshot has no allocations");
+    }
+    double recordedRate = total / seconds;
+    // What the snapshot's bytes and allocations are multiplied by to get
+    // rates per second.
+    double scale = (allocationRate > 0 ? allocationRate / recordedRate : 1) /
+        seconds;
+    System.out.println(String.format(Locale.ROOT,
+        "Profile: %.1f s, %s/s recorded%s; lifetimes for %.0f%% of bytes",
+        seconds, bytes(recordedRate), allocationRate > 0 ?
+            ", scaled to " + bytes(allocationRate) + "/s" : "",
+        covered * 100.0 / total));
+    for (long eden : edens) {
+      for (long region : regions) {
+        for (long tlab : tlabs) {
+          simulate(entries, scale, eden, region, tlab);
+        }
+      }
+    }
+  }
+
+  private void simulate(List<ProfileSnapshot.Entry> entries, double scale,
+      long eden, long region, long tlab) {
+    double edenRate = 0;
+    double tlabRate = 0;
+    double outsideTlab = 0;
+    double humongous = 0;
+    double humongousRegions = 0;
+    for (ProfileSnapshot.Entry e : entries) {
+      if (e.getAllocations() == 0) {
+        continue;
+      }
+      double size = (double) e.getBytes() / e.getAllocations();
+      double allocations = e.getAllocations() * scale;
+      if (size >= region / 2) {
+        humongous += allocations;
+        humongousRegions += allocations * Math.ceil(size / region);
+        continue;
+      }
+      edenRate += e.getBytes() * scale;
+      if (size > tlab) {
+        outsideTlab += allocations;
+      } else {
+        tlabRate += e.getBytes() * scale;
+      }
+    }
+    double gcs = edenRate / eden;
+    double intervalMillis = gcs > 0 ? 1000 / gcs : Double.POSITIVE_INFINITY;
+
+    // Bytes allocated between two collections that survive k of them.
+    double[] surviving = new double[tenuring + 1];
+    boolean lifetimes = false;
+    for (ProfileSnapshot.Entry e : entries) {
+      long[] millis = e.getLifetimeMillis();
+      long sampled = 0;
+      for (long n : millis) {
+        sampled += n;
+      }
+      if (sampled == 0 || e.getAllocations() == 0 ||
+          (double) e.getBytes() / e.getAllocations() >= region / 2) {
+        continue;
+      }
+      lifetimes = true;
+      double rate = e.getBytes() * scale;
+      for (int i = 0; i < millis.length; i++) {
+        double share = (double) millis[i] / sampled;
+        double lifetime = lifetime(i, millis.length);
+        for (int k = 1; k <= tenuring; k++) {
+          surviving[k] += rate * share *
+              survives(lifetime, k, intervalMillis) * intervalMillis / 1000;
+        }
+      }
+    }
+    double survivors = 0;
+    for (int k = 1; k < tenuring; k++) {
+      survivors += surviving[k];
+    }
+    double promoted = surviving[tenuring] * gcs;
+    long survivorSpace = eden / survivorRatio;
+    if (survivors > survivorSpace) {
+      promoted += (survivors - survivorSpace) * gcs;
+    }
+
+    System.out.println(String.format(Locale.ROOT,
+        "eden=%s region=%s tlab=%s:", size(eden), size(region), size(tlab)));
+    System.out.println(String.format(Locale.ROOT,
+        "  young GCs: %.2f/s, every %.0f ms", gcs, intervalMillis));
+    System.out.println(String.format(Locale.ROOT,
+        "  TLAB refills: %.1f/s; allocations outside TLABs: %.1f/s",
+        tlabRate / tlab, outsideTlab));
+    System.out.println(String.format(Locale.ROOT,
+        "  humongous allocations: %.1f/s, %.1f regions/s",
+        humongous, humongousRegions));
+    if (lifetimes) {
+      System.out.println(String.format(Locale.ROOT,
+          "  survivors: %s after each young GC (survivor space %s%s); " +
+          "promoted: %s/s", bytes(survivors), bytes(survivorSpace),
+          survivors > survivorSpace ? ", overflows" : "", bytes(promoted)));
+    } else {
+      System.out.println("  survivors: unknown (the snapshot has no " +
+          "lifetimes)");
+    }
+  }
+
+  // Returns a lifetime, in milliseconds, that stands for the objects in a
+  // bucket of ProfileSnapshot.Entry.getLifetimeMillis().  Objects in the
+  // last two buckets, the longest lived and the ones still live, are taken
+  // to live forever.
+  private static double lifetime(int bucket, int buckets) {
+    if (bucket == 0) {
+      return 0.5;
+    } else if (bucket >= buckets - 2) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return 1.5 * (1L << (bucket - 1));
+  }
+
+  // Returns the chance that an object that lives for the given time
+  // survives k young collections that are the given time apart.  An object
+  // allocated at a random point in an interval survives the k-th one if it
+  // lives longer than the rest of that interval and k - 1 more.
+  private static double survives(double lifetime, int k, double interval) {
+    if (Double.isInfinite(interval)) {
+      return 0;
+    }
+    double chance = (lifetime - (k - 1) * interval) / interval;
+    return Math.max(0, Math.min(1, chance));
+  }
+
+  private static String size(long size) {
+    if (size % (1L << 30) == 0) {
+      return (size >> 30) + "g";
+    } else if (size % (1L << 20) == 0) {
+      return (size >> 20) + "m";
+    } else if (size % (1L << 10) == 0) {
+      return (size >> 10) + "k";
+    }
+    return Long.toString(size);
+  }
+
+  private static String bytes(double bytes) {
+    if (bytes >= 1 << 30) {
+      return String.format(Locale.ROOT, "%.1f GB", bytes / (1 << 30));
+    } else if (bytes >= 1 << 20) {
+      return String.format(Locale.ROOT, "%.1f MB", bytes / (1 << 20));
+    } else if (bytes >= 1 << 10) {
+      return String.format(Locale.ROOT, "%.1f KB", bytes / (1 << 10));
+    }
+    return String.format(Locale.ROOT, "%.0f bytes", bytes);
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.PrintStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records arrays that grow by being copied into longer ones, called from
+ * bytecode rewritten by {@link AllocationInstrumenter} when it is started
+ * with {@code growth=true}.  Every call to {@code Arrays.copyOf} and
+ * {@code Arrays.copyOfRange} is hooked, which is how {@code ArrayList},
+ * {@code StringBuilder}, {@code ByteArrayOutputStream} and most other
+ * growable collections in the JDK grow, and copies that are longer than
+ * the original are counted as growth.
+ *
+ * <p>Growth is totalled for each pair of the method that grew the array
+ * (for example {@code java.util.ArrayList.grow}) and the code that owns the
+ * collection: the first frame below it that isn't in the JDK.  Each total
+ * has the smallest capacity that was grown and the largest that was reached,
+ * so the latter is a good initial capacity for that site, and the bytes that
+ * were thrown away, which is the size of every non-empty array that was
+ * replaced.
+ */
+public final class GrowthRecorder {
+  // How far down the stack to look for the owner.
+  private static final int MAX_STACK_DEPTH = 32;
+
+  private static final String[] JDK_PACKAGES = new String[] {
+    "java.", "javax.", "sun.", "com.sun.", "jdk."
+  };
+
+  private static final ConcurrentMap<String, Site> sites =
+      new ConcurrentHashMap<String, Site>();
+
+  private GrowthRecorder() {
+  }
+
+  /**
+   * Reports the totals at shutdown.
+   *
+   * @param reportPath the file to write the report to; null means stderr.
+   */
+  static void install(String reportPath) {
+    new ShutdownReport() {
+      @Override
+      void write(PrintStream out) {
+        report(out);
+      }
+    }.writeAtShutdown("AllocationGrowthReporter", reportPath);
+  }
+
+  /**
+   * Records a call to {@code Arrays.copyOf} or {@code Arrays.copyOfRange}.
+   *
+   * @param original the array that was copied.
+   * @param copy the copy.
+   */
+  public static void recordCopy(Object original, Object copy) {
+    int oldLength = Array.getLength(original);
+    int newLength = Array.getLength(copy);
+    if (newLength <= oldLength) {
+      return;
+    }
+    AllocationRecorder.ThreadState state = AllocationRecorder.getThreadState();
+    Instrumentation instr = AllocationRecorder.getInstrumentation();
+    if (state.recording || instr == null) {
+      return;
+    }
+    state.recording = true;
+    try {
+      StackTraceElement[] stack = StackCapture.capture(MAX_STACK_DEPTH);
+      String grower = StackCapture.site(stack);
+      String owner = "unknown";
+      for (StackTraceElement frame : stack) {
+        if (!isJdkClass(frame.getClassName())) {
+          owner = frame.toString();
+          break;
+        }
+      }
+      String key = grower + " " + owner;
+      Site site = sites.get(key);
+      if (site == null) {
+        Site newSite = new Site(grower, owner);
+        site = sites.putIfAbsent(key, newSite);
+        if (site == null) {
+          site = newSite;
+        }
+      }
+      site.add(oldLength, newLength, instr.getObjectSize(original),
+          instr.getObjectSize(copy));
+    } finally {
+      state.recording = false;
+    }
+  }
+
+  private static boolean isJdkClass(String className) {
+    for (String prefix : JDK_PACKAGES) {
+      if (className.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the totals for every site seen so far, with the most bytes
+   * thrown away first.
+   */
+  public static List<Site> getSites() {
+    List<Site> result = new ArrayList<Site>(sites.values());
+    Collections.sort(result, new Comparator<Site>() {
+      @Override
+      public int compare(Site a, Site b) {
+        long wa = a.getWastedBytes();
+        long wb = b.getWastedBytes();
+        return wa < wb ? 1 : (wa > wb ? -1 : 0);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Prints the totals in a human readable form.
+   */
+  public static void report(PrintStream out) {
+    out.println("Array growth by site:");
+    for (Site site : getSites()) {
+      out.println(site.getGrower() + " for " + site.getOwner() + ": " +
+          site.getGrowths() + " growths from " + site.getMinCapacity() +
+          " to " + site.getMaxCapacity() + " elements, " +
+          site.getWastedBytes() + " bytes thrown away, " +
+          site.getAllocatedBytes() + " bytes allocated");
+    }
+  }
+
+  /**
+   * The growth done by one method on behalf of one owner.
+   */
+  public static final class Site {
+    private final String grower;
+    private final String owner;
+    private long growths;
+    private int minCapacity = Integer.MAX_VALUE;
+    private int maxCapacity;
+    private long wasted;
+    private long allocated;
+
+    Site(String grower, String owner) {
+      this.grower = grower;
+      this.owner = owner;
+    }
+
+    synchronized void add(int oldLength, int newLength, long oldBytes,
+        long newBytes) {
+      growths++;
+      minCapacity = Math.min(minCapacity, oldLength);
+      maxCapacity = Math.max(maxCapacity, newLength);
+      // Empty arrays are usually shared constants, like ArrayList's.
+      if (oldLength > 0) {
+        wasted += oldBytes;
+      }
+      allocated += newBytes;
+    }
+
+    /** The method that copied the array, for example ArrayList.grow. */
+    public String getGrower() {
+      return grower;
+    }
+
+    /** The first caller outside the JDK, or "unknown". */
+    public String getOwner() {
+      return owner;
+    }
+
+    /** The number of times an array grew. */
+    public synchronized long getGrowths() {
+      return growths;
+    }
+
+    /** The smallest length of an array that grew. */
+    public synchronized int getMinCapacity() {
+      return minCapacity;
+    }
+
+    /** The largest length an array grew to. */
+    public synchronized int getMaxCapacity() {
+      return maxCapacity;
+    }
+
+    /** The total size of the arrays that were replaced by longer ones. */
+    public synchronized long getWastedBytes() {
+      return wasted;
+    }
+
+    /** The total size of the longer arrays. */
+    public synchronized long getAllocatedBytes() {
+      return allocated;
+    }
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tracks the keys with the largest total weight in a stream, in a fixed
+ * amount of memory, using the Space-Saving algorithm (Metwally, Agrawal and
+ * El Abbadi, "Efficient Computation of Frequent and Top-k Elements in Data
+ * Streams").
+ *
+ * <p>Keys are partitioned by hash into stripes, each of which is an
+ * independent Space-Saving summary guarded by its own lock, so concurrent
+ * updates rarely contend; snapshots don't take the locks.  A stripe monitors
+ * a fixed number of keys.  When a new key arrives at a full stripe, it takes
+ * over the counter of the key with the smallest weight, and that weight
+ * becomes the new key's error.  Consequently, for every monitored key the
+ * true weight lies between {@code weight - error} and {@code weight}, and any
+ * key that is not monitored has a true weight of at most
+ * {@link #getErrorBound()}.  Every key
+ * whose true weight exceeds {@code totalWeight / capacity} (times the number
+ * of stripes, in the worst case of uneven partitioning) is guaranteed to be
+ * monitored.
+ *
+ * <p>Besides its weight, each key also has a count of updates and a second,
+ * unranked total (for allocations, the number of array elements).  These are
+ * carried along with the weight, and are overestimated in the same way.
+ */
+final class HeavyHitters<K> {
+  private static final int STRIPES = 16;
+
+  private final Stripe<K>[] stripes;
+
+  /**
+   * @param capacity the total number of keys to monitor.  To report the top
+   *   k keys accurately, this should be several times k.
+   */
+  @SuppressWarnings("unchecked")
+  HeavyHitters(int capacity) {
+    int perStripe = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+    stripes = (Stripe<K>[]) new Stripe<?>[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe<K>(perStripe);
+    }
+  }
+
+  /**
+   * Adds the given number of updates, weight and extra amount to the key.
+   */
+  void add(K key, long count, long weight, long extra) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    stripes[h & (STRIPES - 1)].add(key, count, weight, extra);
+  }
+
+  /**
+   * Returns an upper bound on the weight of any key that isn't monitored.
+   */
+  long getErrorBound() {
+    long bound = 0;
+    for (Stripe<K> stripe : stripes) {
+      bound = Math.max(bound, stripe.minWeight());
+    }
+    return bound;
+  }
+
+  /**
+   * Returns the monitored keys, heaviest first.
+   */
+  List<Counter<K>> snapshot() {
+    List<Counter<K>> result = new ArrayList<Counter<K>>();
+    for (Stripe<K> stripe : stripes) {
+      stripe.copyTo(result);
+    }
+    Collections.sort(result, new Comparator<Counter<K>>() {
+      @Override
+      public int compare(Counter<K> a, Counter<K> b) {
+        return a.weight < b.weight ? 1 : (a.weight > b.weight ? -1 : 0);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Forgets all keys.
+   */
+  void clear() {
+    for (Stripe<K> stripe : stripes) {
+      stripe.clear();
+    }
+  }
+
+  /**
+   * The estimated totals for a key, as of a snapshot.
+   */
+  static final class Counter<K> {
+    final K key;
+    final long weight;
+    final long error;
+    final long count;
+    final long extra;
+
+    Counter(K key, long weight, long error, long count, long extra) {
+      this.key = key;
+      this.weight = weight;
+      this.error = error;
+      this.count = count;
+      this.extra = extra;
+    }
+  }
+
+  /**
+   * One Space-Saving summary.  The monitored keys occupy slots, and a binary
+   * min-heap of slots ordered by weight finds the key to replace.  All of the
+   * arrays are allocated up front.
+   *
+   * <p>Updates hold the stripe's lock.  Snapshots don't take it, so that
+   * they don't hold up the threads that update it: the version is odd while
+   * the stripe is being changed, and a reader copies the stripe again if the
+   * version changed while it was copying.  Everything the reader copies is
+   * read and written through volatile accesses, which the memory model keeps
+   * in one order, so the version check is enough.
+   */
+  private static final class Stripe<K> {
+    // How many times a snapshot tries to copy the stripe between updates
+    // before it takes the lock.
+    private static final int COPY_ATTEMPTS = 1000;
+
+    private final AtomicReferenceArray<K> keys;
+    private final AtomicLongArray weights;
+    private final AtomicLongArray errors;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray extras;
+    // heap[i] is the slot at position i of the heap; position[s] is the
+    // position of slot s.  Only used by updates.
+    private final int[] heap;
+    private final int[] position;
+    private final Map<K, Integer> slots;
+    private final int capacity;
+    private volatile int size;
+    private volatile int version;
+    // The weight of the lightest key once the stripe is full, else 0.
+    private volatile long minWeight;
+
+    Stripe(int capacity) {
+      this.capacity = capacity;
+      keys = new AtomicReferenceArray<K>(capacity);
+      weights = new AtomicLongArray(capacity);
+      errors = new AtomicLongArray(capacity);
+      counts = new AtomicLongArray(capacity);
+      extras = new AtomicLongArray(capacity);
+      heap = new int[capacity];
+      position = new int[capacity];
+      slots = new HashMap<K, Integer>(capacity * 2);
+    }
+
+    synchronized void add(K key, long count, long weight, long extra) {
+      version++;
+      Integer slot = slots.get(key);
+      int s;
+      if (slot != null) {
+        s = slot;
+      } else if (size < capacity) {
+        s = size;
+        heap[s] = s;
+        position[s] = s;
+        keys.set(s, key);
+        slots.put(key, s);
+        size = s + 1;
+        siftUp(s);
+      } else {
+        // Replace the lightest key, which is at the top of the heap.
+        s = heap[0];
+        slots.remove(keys.get(s));
+        keys.set(s, key);
+        errors.set(s, weights.get(s));
+        slots.put(key, s);
+      }
+      weights.set(s, weights.get(s) + weight);
+      counts.set(s, counts.get(s) + count);
+      extras.set(s, extras.get(s) + extra);
+      siftDown(position[s]);
+      if (size == capacity) {
+        minWeight = weights.get(heap[0]);
+      }
+      version++;
+    }
+
+    long minWeight() {
+      return minWeight;
+    }
+
+    void copyTo(List<Counter<K>> result) {
+      int start = result.size();
+      for (int attempt = 0; attempt < COPY_ATTEMPTS; attempt++) {
+        int before = version;
+        if ((before & 1) == 0) {
+          copy(result);
+          if (version == before) {
+            return;
+          }
+          result.subList(start, result.size()).clear();
+        }
+        Thread.yield();
+      }
+      synchronized (this) {
+        copy(result);
+      }
+    }
+
+    private void copy(List<Counter<K>> result) {
+      int n = size;
+      for (int s = 0; s < n; s++) {
+        result.add(new Counter<K>(keys.get(s), weights.get(s), errors.get(s),
+            counts.get(s), extras.get(s)));
+      }
+    }
+
+    synchronized void clear() {
+      version++;
+      for (int s = 0; s < size; s++) {
+        keys.set(s, null);
+        weights.set(s, 0);
+        errors.set(s, 0);
+        counts.set(s, 0);
+        extras.set(s, 0);
+      }
+      slots.clear();
+      size = 0;
+      minWeight = 0;
+      version++;
+    }
+
+    private void siftUp(int i) {
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (weights.get(heap[parent]) <= weights.get(heap[i])) {
+          break;
+        }
+        swap(i, parent);
+        i = parent;
+      }
+    }
+
+    private void siftDown(int i) {
+      int n = size;
+      while (true) {
+        int smallest = i;
+        int left = 2 * i + 1;
+        int right = left + 1;
+        if (left < n
+            && weights.get(heap[left]) < weights.get(heap[smallest])) {
+          smallest = left;
+        }
+        if (right < n
+            && weights.get(heap[right]) < weights.get(heap[smallest])) {
+          smallest = right;
+        }
+        if (smallest == i) {
+          return;
+        }
+        swap(i, smallest);
+        i = smallest;
+      }
+    }
+
+    private void swap(int i, int j) {
+      int si = heap[i];
+      int sj = heap[j];
+      heap[i] = sj;
+      heap[j] = si;
+      position[sj] = i;
+      position[si] = j;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the {@link Sampler} that emits allocations as Java Flight Recorder
+ * events.  JFR's event API is only available from Java 11, so the sampler
+ * ({@code JfrSampler}) and its event class are compiled separately and
+ * packaged in META-INF/versions/11 of the agent jar, which makes it a
+ * multi-release jar.
+ *
+ * <p>Class loaders that understand multi-release jars find those classes by
+ * name.  The boot class path, where the agent normally lives, doesn't, so in
+ * that case the classes are read from the jar and defined in this class's
+ * package directly.
+ */
+final class JfrSupport {
+  private static final Logger logger =
+      Logger.getLogger(JfrSupport.class.getName());
+
+  private static final String PACKAGE =
+      "com.google.monitoring.runtime.instrumentation.";
+  private static final String VERSIONED_DIRECTORY =
+      "META-INF/versions/11/com/google/monitoring/runtime/instrumentation/";
+
+  // The Java 11 classes, in the order in which they have to be defined.
+  private static final String[] VERSIONED_CLASSES = new String[] {
+    "AllocationSampleEvent$MinBytesSetting",
+    "AllocationSampleEvent",
+    "JfrSampler"
+  };
+
+  private JfrSupport() { }
+
+  /**
+   * Returns a sampler that emits JFR events, or null if this JVM doesn't
+   * support them.
+   */
+  static Sampler newSampler() {
+    try {
+      Class.forName("jdk.jfr.Event");
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+    try {
+      Class<?> samplerClass;
+      try {
+        samplerClass = Class.forName(PACKAGE + "JfrSampler");
+      } catch (ClassNotFoundException e) {
+        samplerClass = defineVersionedClasses();
+      }
+      Constructor<?> constructor = samplerClass.getDeclaredConstructor();
+      constructor.setAccessible(true);
+      return (Sampler) constructor.newInstance();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Could not load the JFR sampler.", e);
+      return null;
+    }
+  }
+
+  // Defines the Java 11 classes in this class's loader and package, using
+  // MethodHandles.Lookup.defineClass (which is itself only in Java 9 and
+  // later, so has to be called reflectively).  Returns the sampler class.
+  private static Class<?> defineVersionedClasses() throws Exception {
+    Object lookup = MethodHandles.lookup();
+    Method defineClass =
+        lookup.getClass().getMethod("defineClass", byte[].class);
+    Class<?> defined = null;
+    for (String name : VERSIONED_CLASSES) {
+      defined = (Class<?>) defineClass.invoke(
+          lookup, readResource(VERSIONED_DIRECTORY + name + ".class"));
+    }
+    return defined;
+  }
+
+  private static byte[] readResource(String name) throws IOException {
+    ClassLoader loader = JfrSupport.class.getClassLoader();
+    InputStream in = loader == null ?
+        ClassLoader.getSystemResourceAsStream(name) :
+        loader.getResourceAsStream(name);
+    if (in == null) {
+      throw new IOException("Missing " + name);
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        bytes.write(buf, 0, n);
+      }
+      return bytes.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
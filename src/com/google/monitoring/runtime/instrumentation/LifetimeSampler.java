@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Sampler} that measures how long a sample of the recorded objects
+ * live.  Each sampled object is tracked with a phantom reference, which a
+ * background thread takes off a reference queue after the object has been
+ * collected.  The object's lifetime is then added to histograms for its type
+ * and allocation site, measured both in wall time and in garbage
+ * collections: the number of collections from the object's allocation up to
+ * and including the one that found it unreachable.  Sites whose objects
+ * survive a few collections and then die are the ones that get promoted and
+ * fill the old generation.
+ *
+ * <p>The number of GCs is read from the GarbageCollectorMXBeans by the
+ * background thread every {@link #GC_POLL_MILLIS}, so an object's GC count
+ * can be off by the collections that happened within that time of its
+ * allocation or death.
+ */
+public class LifetimeSampler implements Sampler {
+  /** How often the background thread polls the GC count. */
+  public static final long GC_POLL_MILLIS = 100;
+
+  // The most objects tracked at once when the sampler is set up by the
+  // agent's arguments.
+  private static final int DEFAULT_MAX_TRACKED = 100000;
+
+  // The most types and sites with a histogram, by default.
+  private static final int DEFAULT_MAX_HISTOGRAMS = 10000;
+
+  // Histogram buckets.  GC bucket i counts objects that were found dead by
+  // the i-th collection after they were allocated (the last bucket: by that
+  // one or a later one).  Time bucket 0 counts objects that lived less than
+  // a millisecond, and bucket i > 0 those that lived at least 2^(i-1) and
+  // less than 2^i milliseconds (the last bucket: at least 2^(i-1)).
+  static final int GC_BUCKETS = 17;
+  static final int TIME_BUCKETS = 25;
+
+  private static volatile LifetimeSampler installed;
+
+  private final int samplingInterval;
+  private final int maxTracked;
+  private final int maxHistograms;
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+  // Keeps the references reachable until their objects are collected.
+  private final Set<TrackedReference> tracked = Collections.newSetFromMap(
+      new ConcurrentHashMap<TrackedReference, Boolean>());
+  private final AtomicInteger trackedCount = new AtomicInteger();
+  private final ConcurrentMap<String, Histogram> histograms =
+      new ConcurrentHashMap<String, Histogram>();
+  private final AtomicInteger histogramCount = new AtomicInteger();
+  // Sampled objects that weren't tracked because their type and site had no
+  // histogram, and there were already maxHistograms.
+  private final AtomicLong untracked = new AtomicLong();
+  private final List<GarbageCollectorMXBean> collectors =
+      ManagementFactory.getGarbageCollectorMXBeans();
+  private volatile long gcCount = readGcCount();
+
+  /**
+   * @param samplingInterval on average, one in this many recorded
+   *   allocations is tracked.
+   * @param maxTracked the most objects tracked at once; allocations are not
+   *   sampled while this many are being tracked.
+   */
+  public LifetimeSampler(int samplingInterval, int maxTracked) {
+    this(samplingInterval, maxTracked, DEFAULT_MAX_HISTOGRAMS);
+  }
+
+  /**
+   * @param samplingInterval on average, one in this many recorded
+   *   allocations is tracked.
+   * @param maxTracked the most objects tracked at once; allocations are not
+   *   sampled while this many are being tracked.
+   * @param maxHistograms the most types and sites that get a histogram;
+   *   once there are this many, objects of other types and sites are not
+   *   tracked.
+   */
+  public LifetimeSampler(int samplingInterval, int maxTracked,
+      int maxHistograms) {
+    if (samplingInterval <= 0 || maxTracked <= 0 || maxHistograms <= 0) {
+      throw new IllegalArgumentException(
+          "samplingInterval, maxTracked and maxHistograms must be positive");
+    }
+    this.samplingInterval = samplingInterval;
+    this.maxTracked = maxTracked;
+    this.maxHistograms = maxHistograms;
+    new AgentThreadFactory("AllocationLifetimeSampler").newThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            drain();
+          }
+        }).start();
+  }
+
+  /**
+   * Sets up lifetime sampling from the agent's arguments, reporting the
+   * histograms at shutdown.
+   *
+   * @param samplingInterval one in this many recorded allocations is
+   *   tracked.
+   * @param reportPath the file to write the report to; null means stderr.
+   */
+  static void install(int samplingInterval, String reportPath) {
+    final LifetimeSampler sampler =
+        new LifetimeSampler(samplingInterval, DEFAULT_MAX_TRACKED);
+    AllocationRecorder.addSampler(sampler);
+    installed = sampler;
+    new ShutdownReport() {
+      @Override
+      void write(PrintStream out) {
+        sampler.report(out);
+      }
+    }.writeAtShutdown("AllocationLifetimeReporter", reportPath);
+  }
+
+  /**
+   * Returns the sampler set up by the agent's arguments, or null if there
+   * isn't one.
+   */
+  public static LifetimeSampler getInstalled() {
+    return installed;
+  }
+
+  @Override
+  public void sampleAllocation(int count, String desc, Object newObj,
+      long size) {
+    // Native memory has no object to track.
+    if (newObj == null
+        || ThreadLocalRandom.current().nextInt(samplingInterval) != 0) {
+      return;
+    }
+    if (trackedCount.incrementAndGet() > maxTracked) {
+      trackedCount.decrementAndGet();
+      return;
+    }
+    String type = AllocationProfile.typeName(count, desc, newObj);
+    String site = StackCapture.site(StackCapture.capture(1));
+    String key = type + " " + site;
+    Histogram histogram = histograms.get(key);
+    if (histogram == null) {
+      if (histogramCount.incrementAndGet() > maxHistograms) {
+        histogramCount.decrementAndGet();
+        trackedCount.decrementAndGet();
+        untracked.incrementAndGet();
+        return;
+      }
+      Histogram newHistogram = new Histogram(type, site);
+      histogram = histograms.putIfAbsent(key, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      } else {
+        histogramCount.decrementAndGet();
+      }
+    }
+    tracked.add(new TrackedReference(newObj, queue, histogram, gcCount));
+  }
+
+  /**
+   * Returns the histograms of every type and site seen so far, with the
+   * most objects tracked first.
+   */
+  public List<Histogram> getHistograms() {
+    List<Histogram> result = new ArrayList<Histogram>(histograms.values());
+    Collections.sort(result, new Comparator<Histogram>() {
+      @Override
+      public int compare(Histogram a, Histogram b) {
+        long da = a.getDied() + a.getLive();
+        long db = b.getDied() + b.getLive();
+        return da < db ? 1 : (da > db ? -1 : 0);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Returns the number of sampled objects that weren't tracked because the
+   * sampler already had a histogram for as many types and sites as it
+   * keeps.
+   */
+  public long getUntracked() {
+    return untracked.get();
+  }
+
+  /**
+   * Prints the histograms in a human readable form.
+   */
+  public void report(PrintStream out) {
+    out.println("Object lifetimes by type and site (sampled):");
+    if (untracked.get() > 0) {
+      out.println(untracked.get() + " sampled objects of other types and " +
+          "sites weren't tracked");
+    }
+    for (Histogram h : getHistograms()) {
+      out.println(h.getType() + " at " + h.getSite() + ": " + h.getDied() +
+          " died, " + h.getLive() + " live");
+      out.print("  Collected by GC #:");
+      for (int i = 0; i < GC_BUCKETS; i++) {
+        long n = h.gcBuckets.get(i);
+        if (n > 0) {
+          out.print(" " + (i == GC_BUCKETS - 1 ? i + "+" : i) + ":" + n);
+        }
+      }
+      out.println();
+      out.print("  Lifetime (ms):");
+      for (int i = 0; i < TIME_BUCKETS; i++) {
+        long n = h.timeBuckets.get(i);
+        if (n > 0) {
+          out.print(" " + (i == TIME_BUCKETS - 1 ? ">=" : "<") +
+              (1L << (i == TIME_BUCKETS - 1 ? i - 1 : i)) + ":" + n);
+        }
+      }
+      out.println();
+    }
+  }
+
+  private long readGcCount() {
+    long total = 0;
+    for (GarbageCollectorMXBean collector : collectors) {
+      total += Math.max(0, collector.getCollectionCount());
+    }
+    return total;
+  }
+
+  private void drain() {
+    while (true) {
+      Reference<?> ref;
+      try {
+        ref = queue.remove(GC_POLL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      gcCount = readGcCount();
+      long now = System.nanoTime();
+      while (ref != null) {
+        TrackedReference tr = (TrackedReference) ref;
+        tracked.remove(tr);
+        trackedCount.decrementAndGet();
+        tr.histogram.add(gcCount - tr.birthGcCount,
+            TimeUnit.NANOSECONDS.toMillis(now - tr.birthNanos));
+        ref = queue.poll();
+      }
+    }
+  }
+
+  private static final class TrackedReference extends PhantomReference<Object> {
+    final Histogram histogram;
+    final long birthGcCount;
+    final long birthNanos = System.nanoTime();
+
+    TrackedReference(Object referent, ReferenceQueue<Object> queue,
+        Histogram histogram, long birthGcCount) {
+      super(referent, queue);
+      this.histogram = histogram;
+      this.birthGcCount = birthGcCount;
+      histogram.live.incrementAndGet();
+    }
+  }
+
+  /**
+   * The lifetimes of the sampled objects of one type, allocated at one
+   * site.
+   */
+  public static final class Histogram {
+    private final String type;
+    private final String site;
+    private final AtomicInteger live = new AtomicInteger();
+    final AtomicLongArray gcBuckets = new AtomicLongArray(GC_BUCKETS);
+    final AtomicLongArray timeBuckets = new AtomicLongArray(TIME_BUCKETS);
+
+    Histogram(String type, String site) {
+      this.type = type;
+      this.site = site;
+    }
+
+    void add(long gcs, long millis) {
+      live.decrementAndGet();
+      gcBuckets.incrementAndGet((int) Math.min(gcs, GC_BUCKETS - 1));
+      int bucket = 64 - Long.numberOfLeadingZeros(Math.max(millis, 0));
+      timeBuckets.incrementAndGet(Math.min(bucket, TIME_BUCKETS - 1));
+    }
+
+    /** The Java name of the allocated type. */
+    public String getType() {
+      return type;
+    }
+
+    /** The allocation site. */
+    public String getSite() {
+      return site;
+    }
+
+    /** The number of sampled objects that are still live. */
+    public long getLive() {
+      return live.get();
+    }
+
+    /** The number of sampled objects that have been collected. */
+    public long getDied() {
+      long died = 0;
+      for (int i = 0; i < GC_BUCKETS; i++) {
+        died += gcBuckets.get(i);
+      }
+      return died;
+    }
+
+    /**
+     * The number of collected objects by the number of GCs from their
+     * allocation up to the one that found them dead; the last element counts
+     * objects that took at least that many.  Objects in element 1 didn't
+     * survive a collection.
+     */
+    public long[] getGcCounts() {
+      long[] counts = new long[GC_BUCKETS];
+      for (int i = 0; i < GC_BUCKETS; i++) {
+        counts[i] = gcBuckets.get(i);
+      }
+      return counts;
+    }
+
+    /**
+     * The number of collected objects by lifetime: element 0 counts objects
+     * that lived less than a millisecond, and element i &gt; 0 those that
+     * lived at least 2^(i-1) and less than 2^i milliseconds.  The last
+     * element counts all objects that lived longer.
+     */
+    public long[] getMillisCounts() {
+      long[] counts = new long[TIME_BUCKETS];
+      for (int i = 0; i < TIME_BUCKETS; i++) {
+        counts[i] = timeBuckets.get(i);
+      }
+      return counts;
+    }
+  }
+}
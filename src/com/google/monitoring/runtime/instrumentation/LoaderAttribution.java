@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Charges allocations to the class loader that defined the allocating
+ * class, when the agent is started with {@code loaders=true}, so that the
+ * applications sharing a JVM through separate class loaders can be told
+ * apart.  Each loader is given a number when the first class it defines is
+ * instrumented, and that number is compiled into the class's calls to the
+ * recorder, which charges the allocation by indexing an array with it.
+ *
+ * <p>Loaders are only referred to weakly, so the agent doesn't keep them
+ * from being unloaded.  The totals of unloaded loaders are added up in a
+ * single "unloaded" entry, and their numbers are given to new loaders: none
+ * of the classes they were compiled into are left.  The bootstrap loader is
+ * number 0.
+ */
+public final class LoaderAttribution {
+  private static final Map<ClassLoader, Integer> ids =
+      new WeakHashMap<ClassLoader, Integer>();
+
+  // Indexed by loader number; null where no loader has the number.  Only
+  // changed while holding the class's lock, and written again after an
+  // entry is changed so that charge() sees it.  Doubles when it is full.
+  private static volatile Loader[] loaders = new Loader[16];
+
+  // The number of entries of loaders that have ever been used.
+  private static int used = 1;
+
+  // The numbers that unloaded loaders had, to be given to new loaders.
+  private static final List<Integer> free = new ArrayList<Integer>();
+
+  // The totals of the loaders whose numbers were freed, and whether there
+  // were any.
+  private static final AtomicLong unloadedAllocations = new AtomicLong();
+  private static final AtomicLong unloadedBytes = new AtomicLong();
+  private static boolean swept;
+
+  static {
+    loaders[0] = new Loader(null, "bootstrap");
+  }
+
+  private LoaderAttribution() {
+  }
+
+  /**
+   * Reports the totals at shutdown.
+   *
+   * @param reportPath the file to write the report to; null means stderr.
+   */
+  static void install(String reportPath) {
+    new ShutdownReport() {
+      @Override
+      void write(PrintStream out) {
+        report(out);
+      }
+    }.writeAtShutdown("AllocationLoaderReporter", reportPath);
+  }
+
+  /**
+   * Returns the number of the given loader, giving it one if it doesn't
+   * have one yet.
+   */
+  static synchronized int register(ClassLoader loader) {
+    if (loader == null) {
+      return 0;
+    }
+    Integer id = ids.get(loader);
+    if (id == null) {
+      id = freeNumber();
+      Loader[] current = loaders;
+      // The loader's own toString() could run application code.
+      current[id] = new Loader(loader, loader.getClass().getName() + "@" +
+          Integer.toHexString(System.identityHashCode(loader)));
+      loaders = current;
+      ids.put(loader, id);
+    }
+    return id;
+  }
+
+  // Returns a number that no loader has.  When the table is full, the
+  // numbers of unloaded loaders are freed first, and the table only grows
+  // if that frees less than a quarter of it, so that it isn't swept for
+  // every new loader.
+  private static int freeNumber() {
+    if (free.isEmpty() && used == loaders.length) {
+      sweep();
+      if (free.size() < loaders.length / 4) {
+        loaders = Arrays.copyOf(loaders, loaders.length * 2);
+      }
+    }
+    return free.isEmpty() ? used++ : free.remove(free.size() - 1);
+  }
+
+  // Adds the totals of unloaded loaders to the unloaded totals, and frees
+  // their numbers.
+  private static void sweep() {
+    Loader[] current = loaders;
+    for (int i = 1; i < used; i++) {
+      Loader loader = current[i];
+      if (loader != null && loader.ref.get() == null) {
+        unloadedAllocations.addAndGet(loader.allocations.get());
+        unloadedBytes.addAndGet(loader.bytes.get());
+        current[i] = null;
+        free.add(i);
+        swept = true;
+      }
+    }
+    loaders = current;
+  }
+
+  /**
+   * Charges a recorded allocation to a loader.
+   *
+   * @param loader the number of the loader.
+   * @param weight the number of allocations the recorded one stands for.
+   * @param size the size of the allocation, in bytes.
+   */
+  static void charge(int loader, int weight, long size) {
+    Loader[] current = loaders;
+    Loader l = loader < current.length ? current[loader] : null;
+    if (l != null) {
+      l.allocations.add(weight);
+      l.bytes.add(weight * size);
+    }
+  }
+
+  /**
+   * Returns the totals for every loader that has been given a number and
+   * hasn't been unloaded, and the totals of the unloaded ones as a single
+   * "unloaded" entry, the one that allocated the most bytes first.
+   */
+  public static synchronized List<Usage> getUsage() {
+    List<Usage> result = new ArrayList<Usage>();
+    long allocations = unloadedAllocations.get();
+    long bytes = unloadedBytes.get();
+    boolean unloaded = swept;
+    for (Loader loader : loaders) {
+      if (loader == null) {
+        continue;
+      }
+      if (loader.ref != null && loader.ref.get() == null) {
+        allocations += loader.allocations.get();
+        bytes += loader.bytes.get();
+        unloaded = true;
+      } else {
+        result.add(new Usage(loader.name, false, loader.allocations.get(),
+            loader.bytes.get()));
+      }
+    }
+    if (unloaded) {
+      result.add(new Usage("unloaded", true, allocations, bytes));
+    }
+    Collections.sort(result, new Comparator<Usage>() {
+      @Override
+      public int compare(Usage a, Usage b) {
+        return a.bytes < b.bytes ? 1 : (a.bytes > b.bytes ? -1 : 0);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Prints the totals in a human readable form.
+   */
+  public static void report(PrintStream out) {
+    out.println("Allocation by class loader:");
+    for (Usage usage : getUsage()) {
+      out.println(usage.getLoader() + ": " + usage.getAllocations() +
+          " allocations, " +
+          usage.getBytes() + " bytes");
+    }
+  }
+
+  private static final class Loader {
+    // Null for the bootstrap loader.
+    final WeakReference<ClassLoader> ref;
+    final String name;
+    final StripedCounter allocations = new StripedCounter();
+    final StripedCounter bytes = new StripedCounter();
+
+    Loader(ClassLoader loader, String name) {
+      this.ref = loader == null ? null : new WeakReference<ClassLoader>(loader);
+      this.name = name;
+    }
+  }
+
+  /**
+   * The allocations charged to one class loader, as of a snapshot.
+   */
+  public static final class Usage {
+    private final String loader;
+    private final boolean unloaded;
+    private final long allocations;
+    private final long bytes;
+
+    Usage(String loader, boolean unloaded, long allocations, long bytes) {
+      this.loader = loader;
+      this.unloaded = unloaded;
+      this.allocations = allocations;
+      this.bytes = bytes;
+    }
+
+    /**
+     * The loader's class and identity hash code, for example
+     * {@code sun.misc.Launcher$AppClassLoader@1b6d3586}, "bootstrap", or
+     * "unloaded" for the loaders that have been unloaded.
+     */
+    public String getLoader() {
+      return loader;
+    }
+
+    /** Whether this is the entry for the unloaded loaders. */
+    public boolean isUnloaded() {
+      return unloaded;
+    }
+
+    /** The number of allocations. */
+    public long getAllocations() {
+      return allocations;
+    }
+
+    /** The number of bytes allocated. */
+    public long getBytes() {
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * A <code>MethodVisitor</code> that makes a method selected with the agent's
+ * <code>methods</code> argument call {@link MethodAllocations#enter} on
+ * entry, and {@link MethodAllocations#exit} on every return and on every
+ * exception that leaves it.  Constructors call enter once the superclass
+ * constructor has returned.
+ */
+class MethodAllocationAdapter extends AdviceAdapter {
+  private static final String HOOKS =
+      "com/google/monitoring/runtime/instrumentation/MethodAllocations";
+
+  private final int method;
+
+  // The start of the range covered by the handler that calls exit when an
+  // exception leaves the method.
+  private final Label start = new Label();
+  // Whether enter is called.  It isn't in a constructor that never calls the
+  // superclass constructor, for example one that always throws.
+  private boolean entered;
+
+  /**
+   * @param method the number {@link MethodAllocations#register} gave the
+   *   method.
+   */
+  MethodAllocationAdapter(MethodVisitor mv, int access, String name,
+      String desc, int method) {
+    super(Opcodes.ASM5, mv, access, name, desc);
+    this.method = method;
+  }
+
+  @Override
+  protected void onMethodEnter() {
+    invokeHook("enter");
+    mv.visitLabel(start);
+    entered = true;
+  }
+
+  @Override
+  protected void onMethodExit(int opcode) {
+    // Exceptions, thrown here or by a callee, are left to the handler.
+    if (opcode != Opcodes.ATHROW) {
+      invokeHook("exit");
+    }
+  }
+
+  /**
+   * Adds the handler for exceptions that leave the method.  It is visited
+   * last so that it doesn't take precedence over the method's own handlers.
+   */
+  @Override
+  public void visitMaxs(int maxStack, int maxLocals) {
+    if (entered) {
+      Label handler = new Label();
+      mv.visitTryCatchBlock(start, handler, handler, null);
+      mv.visitLabel(handler);
+      // stack: throwable
+      invokeHook("exit");
+      mv.visitInsn(Opcodes.ATHROW);
+    }
+    super.visitMaxs(maxStack, maxLocals);
+  }
+
+  private void invokeHook(String hook) {
+    if (method <= Short.MAX_VALUE) {
+      mv.visitIntInsn(Opcodes.SIPUSH, method);
+    } else {
+      mv.visitLdcInsn(method);
+    }
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, HOOKS, hook, "(I)V", false);
+  }
+}
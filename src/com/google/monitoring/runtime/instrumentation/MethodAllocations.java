@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Charges the bytes allocated by threads to selected methods, when the agent
+ * is started with {@code methods=<patterns>}.  In this mode allocation
+ * instructions aren't hooked.  Instead, the selected methods call
+ * {@link #enter} and {@link #exit}, which read the JVM's count of the bytes
+ * the current thread has allocated, and charge the difference to the method.
+ * This sees every allocation, including the ones the JIT or the JDK's
+ * native code makes, and costs the same however much a method allocates.
+ *
+ * <p>Each method is charged its bytes inclusive of everything it calls, and
+ * exclusive of the selected methods it calls.  The bytes allocated by
+ * unselected callees are part of the caller's exclusive bytes.  Recursive
+ * calls are only counted once in a method's inclusive bytes.
+ *
+ * <p>The patterns are separated by {@code +}.  A pattern is a class name
+ * and a method name, such as {@code com.example.Server.handle}, or a prefix
+ * of one followed by {@code *}, such as {@code com.example.Server.*} or
+ * {@code com.example.*}.
+ */
+public final class MethodAllocations {
+  private static volatile String[] exact = new String[0];
+  private static volatile String[] prefixes = new String[0];
+
+  private static volatile com.sun.management.ThreadMXBean threads;
+
+  private static final Map<String, Integer> ids =
+      new HashMap<String, Integer>();
+
+  // Indexed by method number.  Copy-on-write.
+  private static volatile Method[] methods = new Method[0];
+
+  private static final ThreadLocal<Frames> frames = new ThreadLocal<Frames>() {
+    @Override
+    protected Frames initialValue() {
+      return new Frames();
+    }
+  };
+
+  private MethodAllocations() {
+  }
+
+  /**
+   * Sets up the mode from the agent's arguments, reporting the totals at
+   * shutdown.
+   *
+   * @param patterns the methods to select.
+   * @param reportPath the file to write the report to; null means stderr.
+   * @return whether the JVM can count the bytes allocated by threads.
+   */
+  static boolean install(String patterns, String reportPath) {
+    Object bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean) ||
+        !((com.sun.management.ThreadMXBean) bean)
+            .isThreadAllocatedMemorySupported()) {
+      System.err.println("This JVM can't count the bytes allocated by " +
+          "threads; methods not enabled.");
+      return false;
+    }
+    threads = (com.sun.management.ThreadMXBean) bean;
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    List<String> exactList = new ArrayList<String>();
+    List<String> prefixList = new ArrayList<String>();
+    for (String pattern : patterns.split("\\+")) {
+      pattern = pattern.trim();
+      if (pattern.endsWith("*")) {
+        prefixList.add(pattern.substring(0, pattern.length() - 1));
+      } else if (!pattern.isEmpty()) {
+        exactList.add(pattern);
+      }
+    }
+    exact = exactList.toArray(new String[exactList.size()]);
+    prefixes = prefixList.toArray(new String[prefixList.size()]);
+
+    new ShutdownReport() {
+      @Override
+      void write(PrintStream out) {
+        report(out);
+      }
+    }.writeAtShutdown("AllocationMethodReporter", reportPath);
+    return true;
+  }
+
+  /**
+   * Returns whether the class with the given internal name may have
+   * selected methods, so that other classes don't have to be parsed.
+   */
+  static boolean mayBeSelected(String className) {
+    String name = className.replace('/', '.') + ".";
+    for (String pattern : exact) {
+      if (pattern.startsWith(name) && pattern.indexOf('.', name.length()) < 0) {
+        return true;
+      }
+    }
+    for (String prefix : prefixes) {
+      if (name.startsWith(prefix) || prefix.startsWith(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether a method is selected.
+   *
+   * @param className the internal name of the method's class.
+   * @param methodName the name of the method.
+   */
+  static boolean isSelected(String className, String methodName) {
+    String name = className.replace('/', '.') + "." + methodName;
+    for (String pattern : exact) {
+      if (pattern.equals(name)) {
+        return true;
+      }
+    }
+    for (String prefix : prefixes) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of the method with the given name, giving it one if
+   * it doesn't have one yet.  A method keeps its number when its class is
+   * retransformed.
+   */
+  static synchronized int register(String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      Method[] current = methods;
+      id = current.length;
+      Method[] grown = Arrays.copyOf(current, id + 1);
+      grown[id] = new Method(name);
+      methods = grown;
+      ids.put(name, id);
+    }
+    return id;
+  }
+
+  /**
+   * Called on entry to a selected method.
+   *
+   * @param method the number of the method.
+   */
+  public static void enter(int method) {
+    Frames f = frames.get();
+    if (f.inHook) {
+      return;
+    }
+    f.inHook = true;
+    try {
+      int depth = f.depth;
+      if (depth == f.methods.length) {
+        f.grow();
+      }
+      f.methods[depth] = method;
+      f.callees[depth] = 0;
+      f.depth = depth + 1;
+      // Read last, so that the frame's own bookkeeping isn't charged.
+      f.start[depth] = threads.getThreadAllocatedBytes(f.threadId);
+    } finally {
+      f.inHook = false;
+    }
+  }
+
+  /**
+   * Called on every exit from a selected method, whether it returns or
+   * throws.
+   *
+   * @param method the number of the method.
+   */
+  public static void exit(int method) {
+    Frames f = frames.get();
+    if (f.inHook) {
+      return;
+    }
+    f.inHook = true;
+    try {
+      long now = threads.getThreadAllocatedBytes(f.threadId);
+      // If an error was thrown by enter() itself, such as a
+      // StackOverflowError, frames may have been left without a matching
+      // exit.  They are dropped.
+      int depth = f.depth - 1;
+      while (depth >= 0 && f.methods[depth] != method) {
+        depth--;
+      }
+      if (depth < 0) {
+        return;
+      }
+      f.depth = depth;
+      long inclusive = now - f.start[depth];
+      if (depth > 0) {
+        f.callees[depth - 1] += inclusive;
+      }
+      boolean recursive = false;
+      for (int i = 0; i < depth; i++) {
+        if (f.methods[i] == method) {
+          recursive = true;
+          break;
+        }
+      }
+      Method m = methods[method];
+      m.calls.increment();
+      m.exclusive.add(inclusive - f.callees[depth]);
+      if (!recursive) {
+        m.inclusive.add(inclusive);
+      }
+    } finally {
+      f.inHook = false;
+    }
+  }
+
+  /**
+   * Returns the totals for every selected method that has been
+   * instrumented, the one that allocated the most bytes inclusive of its
+   * callees first.
+   */
+  public static List<Usage> getUsage() {
+    List<Usage> result = new ArrayList<Usage>();
+    for (Method m : methods) {
+      result.add(new Usage(m.name, m.calls.get(), m.inclusive.get(),
+          m.exclusive.get()));
+    }
+    Collections.sort(result, new Comparator<Usage>() {
+      @Override
+      public int compare(Usage a, Usage b) {
+        return a.inclusive < b.inclusive ? 1 :
+            (a.inclusive > b.inclusive ? -1 : 0);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Prints the totals in a human readable form.
+   */
+  public static void report(PrintStream out) {
+    out.println("Bytes allocated by method (inclusive / exclusive of " +
+        "selected callees):");
+    for (Usage usage : getUsage()) {
+      out.println(usage.getMethod() + ": " + usage.getCalls() + " calls, " +
+          usage.getInclusiveBytes() + " / " + usage.getExclusiveBytes() +
+          " bytes");
+    }
+  }
+
+  private static final class Method {
+    final String name;
+    final StripedCounter calls = new StripedCounter();
+    final StripedCounter inclusive = new StripedCounter();
+    final StripedCounter exclusive = new StripedCounter();
+
+    Method(String name) {
+      this.name = name;
+    }
+  }
+
+  // The selected methods a thread is in, innermost last.
+  private static final class Frames {
+    final long threadId = Thread.currentThread().getId();
+    // Set while a hook runs, so that selected methods it calls, such as
+    // JDK methods, aren't charged.
+    boolean inHook;
+    int depth;
+    int[] methods = new int[16];
+    // The thread's allocated bytes when each method was entered.
+    long[] start = new long[16];
+    // The bytes allocated by each method's selected callees.
+    long[] callees = new long[16];
+
+    void grow() {
+      methods = Arrays.copyOf(methods, methods.length * 2);
+      start = Arrays.copyOf(start, start.length * 2);
+      callees = Arrays.copyOf(callees, callees.length * 2);
+    }
+  }
+
+  /**
+   * The bytes charged to one method, as of a snapshot.
+   */
+  public static final class Usage {
+    private final String method;
+    private final long calls;
+    private final long inclusive;
+    private final long exclusive;
+
+    Usage(String method, long calls, long inclusive, long exclusive) {
+      this.method = method;
+      this.calls = calls;
+      this.inclusive = inclusive;
+      this.exclusive = exclusive;
+    }
+
+    /**
+     * The method's class, name and parameter types, for example
+     * {@code com.example.Server.handle(java.lang.String, int)}.
+     */
+    public String getMethod() {
+      return method;
+    }
+
+    /** The number of calls that have returned or thrown. */
+    public long getCalls() {
+      return calls;
+    }
+
+    /** The bytes allocated by the method and everything it called. */
+    public long getInclusiveBytes() {
+      return inclusive;
+    }
+
+    /**
+     * The bytes allocated by the method, and by the methods it called that
+     * weren't selected.
+     */
+    public long getExclusiveBytes() {
+      return exclusive;
+    }
+  }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves allocation metrics over HTTP, in the Prometheus text exposition
+ * format, at {@code http://127.0.0.1:<port>/metrics}.  The metrics are the
+ * bytes and number of allocations by type, the same by allocation site for
+ * the {@link #MAX_SITES} sites with the most bytes, and the agent's own
+ * overhead.
+ *
+ * <p>The totals by type and site are counters for an exact profile.  For a
+ * bounded one, they are exported as gauges without the {@code _total}
+ * suffix, since an entry that is replaced takes its bytes with it and the
+ * totals can go down.
+ *
+ * <p>Each scrape renders a snapshot of an {@link AllocationProfile} on the
+ * server's own thread.  That only reads the profile's counters, exact or
+ * bounded, so a scrape doesn't block the threads that are recording.  The
+ * server only listens on the loopback interface.
+ *
+ * <p>The server is a minimal HTTP/1.1 server on a plain socket, which serves
+ * one request per connection.  It doesn't use {@code com.sun.net.httpserver}
+ * because the agent is loaded by the bootstrap class loader, which can't see
+ * that module's classes from Java 9 on.
+ */
+public class MetricsServer {
+  /** The most allocation sites that are exported. */
+  public static final int MAX_SITES = 100;
+
+  private static final String CONTENT_TYPE =
+      "text/plain; version=0.0.4; charset=utf-8";
+
+  // How long a connection can take to send its request.
+  private static final int READ_TIMEOUT_MILLIS = 10000;
+
+  // The longest request head that is read.
+  private static final int MAX_REQUEST_BYTES = 8192;
+
+  private final AllocationProfile profile;
+  private final ServerSocket server;
+
+  /**
+   * Starts serving the given profile's metrics.
+   *
+   * @param profile the profile to export.
+   * @param port the port to listen on, or 0 for any free port.
+   */
+  public MetricsServer(AllocationProfile profile, int port)
+      throws IOException {
+    this.profile = profile;
+    server = new ServerSocket(port, 0, InetAddress.getByName("127.0.0.1"));
+    new AgentThreadFactory("AllocationMetricsServer").newThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            serve();
+          }
+        }).start();
+  }
+
+  /**
+   * Sets up the server from the agent's arguments.  It exports the profile
+   * that is being dumped, if there is one, and otherwise adds a profile of
+   * its own to the recorder.
+   *
+   * @param port the port to listen on.
+   * @param maxEntries the number of types and stacks to keep in a new
+   *   profile; null means all of them.
+   */
+  static void install(String port, String maxEntries) {
+    int portNumber = parse(port, 0, 65535);
+    if (portNumber < 0) {
+      System.err.println("metricsPort must be a port number from 0 to " +
+          "65535; metrics server not enabled.");
+      return;
+    }
+    ProfileDumper dumper = ProfileDumper.getInstalled();
+    AllocationProfile profile;
+    if (dumper != null) {
+      profile = dumper.getProfile();
+    } else if (maxEntries == null) {
+      profile = new AllocationProfile();
+    } else {
+      int entries = parse(maxEntries, 1, Integer.MAX_VALUE);
+      if (entries < 0) {
+        System.err.println("maxProfileEntries must be a positive number; " +
+            "metrics server not enabled.");
+        return;
+      }
+      profile = new AllocationProfile(entries);
+    }
+    try {
+      new MetricsServer(profile, portNumber);
+    } catch (IOException e) {
+      System.err.println("Could not start the metrics server: " + e);
+      return;
+    }
+    if (dumper == null) {
+      AllocationRecorder.addSampler(profile);
+    }
+  }
+
+  // Parses an argument, returning -1 if it isn't a number from min to max.
+  private static int parse(String value, int min, int max) {
+    try {
+      int n = Integer.parseInt(value);
+      return n >= min && n <= max ? n : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the port the server is listening on.
+   */
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Stops the server.
+   */
+  public void stop() {
+    try {
+      server.close();
+    } catch (IOException e) {
+      // Closed anyway.
+    }
+  }
+
+  private void serve() {
+    while (!server.isClosed()) {
+      Socket connection;
+      try {
+        connection = server.accept();
+      } catch (IOException e) {
+        continue;
+      }
+      try {
+        connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+        respond(connection);
+      } catch (IOException e) {
+        // The client went away.
+      } finally {
+        try {
+          connection.close();
+        } catch (IOException e) {
+          // Nothing to do.
+        }
+      }
+    }
+  }
+
+  // Reads a request and writes the response.  Only GET (and HEAD) of
+  // /metrics is served.
+  private void respond(Socket connection) throws IOException {
+    String request = readRequestHead(
+        new BufferedInputStream(connection.getInputStream()));
+    String[] parts = request.split(" ");
+    OutputStream out = connection.getOutputStream();
+    if (parts.length < 2) {
+      respond(out, "400 Bad Request", "text/plain", new byte[0], true);
+    } else if (!parts[0].equals("GET") && !parts[0].equals("HEAD")) {
+      respond(out, "405 Method Not Allowed", "text/plain", new byte[0], true);
+    } else if (!parts[1].equals("/metrics")
+        && !parts[1].startsWith("/metrics?")) {
+      respond(out, "404 Not Found", "text/plain", new byte[0], true);
+    } else {
+      respond(out, "200 OK", CONTENT_TYPE, render().getBytes("UTF-8"),
+          parts[0].equals("GET"));
+    }
+  }
+
+  // Returns the request line, reading up to the blank line that ends the
+  // headers, which are ignored.
+  private static String readRequestHead(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    String requestLine = null;
+    for (int read = 0; read < MAX_REQUEST_BYTES; read++) {
+      int c = in.read();
+      if (c < 0) {
+        break;
+      }
+      if (c == '\n') {
+        if (line.length() == 0) {
+          break;
+        }
+        if (requestLine == null) {
+          requestLine = line.toString();
+        }
+        line.setLength(0);
+      } else if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return requestLine == null ? line.toString() : requestLine;
+  }
+
+  private static void respond(OutputStream out, String status,
+      String contentType, byte[] body, boolean withBody) throws IOException {
+    String head = "HTTP/1.1 " + status + "\r\n" +
+        "Content-Type: " + contentType + "\r\n" +
+        "Content-Length: " + body.length + "\r\n" +
+        "Connection: close\r\n\r\n";
+    out.write(head.getBytes("US-ASCII"));
+    if (withBody) {
+      out.write(body);
+    }
+    out.flush();
+  }
+
+  /**
+   * Renders the current metrics in the Prometheus text format.
+   */
+  String render() {
+    List<AllocationProfile.Entry> entries = profile.snapshot();
+    StringBuilder sb = new StringBuilder();
+
+    // Totals by type.
+    Map<String, long[]> byType = new HashMap<String, long[]>();
+    // Totals by site and type.
+    Map<String, long[]> bySite = new HashMap<String, long[]>();
+    Map<String, String[]> siteLabels = new HashMap<String, String[]>();
+    for (AllocationProfile.Entry e : entries) {
+      String type = e.getTypeName();
+      String site = StackCapture.site(e.getStack());
+      add(byType, type, e);
+      String key = site + " " + type;
+      add(bySite, key, e);
+      if (!siteLabels.containsKey(key)) {
+        siteLabels.put(key, new String[] { site, type });
+      }
+    }
+
+    boolean bounded = profile.isBounded();
+    String name = total("allocation_bytes", bounded);
+    header(sb, name, bounded, "Bytes allocated, by type.");
+    for (Map.Entry<String, long[]> e : byType.entrySet()) {
+      sample(sb, name, e.getValue()[1], "type", e.getKey());
+    }
+    name = total("allocations", bounded);
+    header(sb, name, bounded, "Number of allocations, by type.");
+    for (Map.Entry<String, long[]> e : byType.entrySet()) {
+      sample(sb, name, e.getValue()[0], "type", e.getKey());
+    }
+
+    List<Map.Entry<String, long[]>> sites =
+        new ArrayList<Map.Entry<String, long[]>>(bySite.entrySet());
+    Collections.sort(sites, new Comparator<Map.Entry<String, long[]>>() {
+      @Override
+      public int compare(Map.Entry<String, long[]> a,
+          Map.Entry<String, long[]> b) {
+        long ba = a.getValue()[1];
+        long bb = b.getValue()[1];
+        return ba < bb ? 1 : (ba > bb ? -1 : 0);
+      }
+    });
+    sites = sites.subList(0, Math.min(sites.size(), MAX_SITES));
+    name = total("allocation_site_bytes", bounded);
+    header(sb, name, bounded,
+        "Bytes allocated, by allocation site and type, for the top sites.");
+    for (Map.Entry<String, long[]> e : sites) {
+      String[] labels = siteLabels.get(e.getKey());
+      sample(sb, name, e.getValue()[1], "site", labels[0], "type", labels[1]);
+    }
+    name = total("allocation_site_allocations", bounded);
+    header(sb, name, bounded,
+        "Number of allocations, by allocation site and type, for the top " +
+        "sites.");
+    for (Map.Entry<String, long[]> e : sites) {
+      String[] labels = siteLabels.get(e.getKey());
+      sample(sb, name, e.getValue()[0], "site", labels[0], "type", labels[1]);
+    }
+
+    if (AllocationInstrumenter.trackLoaders) {
+      List<LoaderAttribution.Usage> loaders = LoaderAttribution.getUsage();
+      header(sb, "allocation_loader_bytes_total", "counter",
+          "Bytes allocated by classes, by the class loader that defined " +
+          "them.");
+      for (LoaderAttribution.Usage usage : loaders) {
+        sample(sb, "allocation_loader_bytes_total", usage.getBytes(),
+            "loader", usage.getLoader());
+      }
+      header(sb, "allocation_loader_allocations_total", "counter",
+          "Number of allocations by classes, by the class loader that " +
+          "defined them.");
+      for (LoaderAttribution.Usage usage : loaders) {
+        sample(sb, "allocation_loader_allocations_total",
+            usage.getAllocations(), "loader", usage.getLoader());
+      }
+    }
+
+    if (AllocationInstrumenter.trackMethods) {
+      List<MethodAllocations.Usage> methods = MethodAllocations.getUsage();
+      header(sb, "allocation_method_bytes_total", "counter",
+          "Bytes allocated by selected methods, inclusive or exclusive of " +
+          "the selected methods they called.");
+      for (MethodAllocations.Usage usage : methods) {
+        sample(sb, "allocation_method_bytes_total", usage.getInclusiveBytes(),
+            "method", usage.getMethod(), "scope", "inclusive");
+        sample(sb, "allocation_method_bytes_total", usage.getExclusiveBytes(),
+            "method", usage.getMethod(), "scope", "exclusive");
+      }
+      header(sb, "allocation_method_calls_total", "counter",
+          "Number of calls to selected methods.");
+      for (MethodAllocations.Usage usage : methods) {
+        sample(sb, "allocation_method_calls_total", usage.getCalls(),
+            "method", usage.getMethod());
+      }
+    }
+
+    header(sb, "allocation_profile_entries", "gauge",
+        "Number of types and stacks in the profile.");
+    sample(sb, "allocation_profile_entries", entries.size());
+    header(sb, "allocation_profile_error_bytes", "gauge",
+        "Most bytes that a type and stack missing from the profile can have.");
+    sample(sb, "allocation_profile_error_bytes", profile.getErrorBound());
+    header(sb, "allocation_agent_sampling_interval", "gauge",
+        "One in this many allocations is recorded.");
+    sample(sb, "allocation_agent_sampling_interval",
+        OverheadGovernor.getSamplingInterval());
+    OverheadGovernor governor = OverheadGovernor.getInstalled();
+    if (governor != null) {
+      header(sb, "allocation_agent_recorder_seconds_total", "counter",
+          "Estimated CPU time spent recording allocations.");
+      sample(sb, "allocation_agent_recorder_seconds_total",
+          governor.getRecorderNanos() / 1e9);
+      header(sb, "allocation_agent_recorder_load", "gauge",
+          "Share of the machine's CPU time spent recording allocations.");
+      sample(sb, "allocation_agent_recorder_load", governor.getRecorderLoad());
+      header(sb, "allocation_agent_gc_load", "gauge",
+          "Share of wall time spent in GC.");
+      sample(sb, "allocation_agent_gc_load", governor.getGcLoad());
+    }
+    if (AgentStats.enabled) {
+      renderAgentStats(sb);
+    }
+    return sb.toString();
+  }
+
+  private static void renderAgentStats(StringBuilder sb) {
+    header(sb, "allocation_agent_classes_total", "counter",
+        "Classes seen by the transformer, by outcome.");
+    sample(sb, "allocation_agent_classes_total",
+        AgentStats.getClassesTransformed(), "outcome", "transformed");
+    sample(sb, "allocation_agent_classes_total",
+        AgentStats.getClassesFiltered(), "outcome", "filtered");
+    sample(sb, "allocation_agent_classes_total",
+        AgentStats.getClassesFellBack(), "outcome", "too_long");
+    sample(sb, "allocation_agent_classes_total",
+        AgentStats.getClassesFailed(), "outcome", "failed");
+    header(sb, "allocation_agent_bytecode_bytes_total", "counter",
+        "Size of the classes that were rewritten, before and after.");
+    sample(sb, "allocation_agent_bytecode_bytes_total",
+        AgentStats.getBytesIn(), "stage", "before");
+    sample(sb, "allocation_agent_bytecode_bytes_total",
+        AgentStats.getBytesOut(), "stage", "after");
+    histogram(sb, "allocation_agent_transform_seconds",
+        "Time taken to rewrite a class.", AgentStats.getTransformNanos());
+    header(sb, "allocation_agent_events_total", "counter",
+        "Allocations that reached the recorder, by what it did with them.");
+    sample(sb, "allocation_agent_events_total", AgentStats.getEvents(),
+        "outcome", "all");
+    sample(sb, "allocation_agent_events_total", AgentStats.getBelowMinimum(),
+        "outcome", "below_minimum");
+    sample(sb, "allocation_agent_events_total", AgentStats.getReentrant(),
+        "outcome", "reentrant");
+    header(sb, "allocation_agent_stack_captures_total", "counter",
+        "Stacks captured for samplers and budgets.");
+    sample(sb, "allocation_agent_stack_captures_total",
+        AgentStats.getStackCaptures());
+    histogram(sb, "allocation_agent_hook_seconds",
+        "Time taken to record an allocation, for a sample of them.",
+        AgentStats.getHookNanos());
+  }
+
+  // Appends a histogram whose buckets are powers of two nanoseconds, from
+  // a microsecond to a second.
+  private static void histogram(StringBuilder sb, String name, String help,
+      AgentStats.Histogram histogram) {
+    header(sb, name, "histogram", help);
+    for (int bucket = 10; bucket <= 30; bucket += 2) {
+      sample(sb, name + "_bucket", histogram.getCountBelow(bucket),
+          "le", Double.toString((1L << bucket) / 1e9));
+    }
+    long count = histogram.getCount();
+    sample(sb, name + "_bucket", count, "le", "+Inf");
+    sample(sb, name + "_sum", histogram.getTotalNanos() / 1e9);
+    sample(sb, name + "_count", count);
+  }
+
+  // The name of a total from the profile: a counter, or a gauge if the
+  // profile is bounded.
+  private static String total(String name, boolean bounded) {
+    return bounded ? name : name + "_total";
+  }
+
+  private static void header(StringBuilder sb, String name, boolean bounded,
+      String help) {
+    if (bounded) {
+      header(sb, name, "gauge", help + " Estimated from a bounded " +
+          "profile, so it can go down.");
+    } else {
+      header(sb, name, "counter", help);
+    }
+  }
+
+  private static void add(Map<String, long[]> totals, String key,
+      AllocationProfile.Entry e) {
+    long[] t = totals.get(key);
+    if (t == null) {
+      t = new long[2];
+      totals.put(key, t);
+    }
+    t[0] += e.getAllocations();
+    t[1] += e.getBytes();
+  }
+
+  private static void header(StringBuilder sb, String name, String type,
+      String help) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  // Appends a sample; labels alternate between names and values.
+  private static void sample(StringBuilder sb, String name, double value,
+      String... labels) {
+    sb.append(name);
+    if (labels.length > 0) {
+      sb.append('{');
+      for (int i = 0; i < labels.length; i += 2) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append(labels[i]).append("=\"");
+        escape(sb, labels[i + 1]);
+        sb.append('"');
+      }
+      sb.append('}');
+    }
+    sb.append(' ');
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      sb.append((long) value);
+    } else {
+      sb.append(value);
+    }
+    sb.append('\n');
+  }
+
+  private static void escape(StringBuilder sb, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        sb.append('\\').append(c);
+      } else if (c == '\n') {
+        sb.append("\\n");
+      } else {
+        sb.append(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.PrintStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records allocations of memory outside the Java heap, called from bytecode
+ * rewritten by {@link AllocationInstrumenter} when it is started with
+ * {@code offHeap=true}.  The hooked calls are
+ * {@link ByteBuffer#allocateDirect}, {@code FileChannel.map}, and
+ * {@code sun.misc.Unsafe}'s {@code allocateMemory}, {@code reallocateMemory}
+ * and {@code freeMemory}.
+ *
+ * <p>Each allocation is passed to the recorder's samplers, with a count of
+ * -1, the requested number of bytes as its size, and one of the descriptors
+ * below in place of a class.  For buffers, the object is the buffer; for
+ * {@code Unsafe} it is null.  Allocations are also totalled by allocation
+ * site, along with the memory that has since been freed: a buffer's memory
+ * when the buffer has been collected, and {@code Unsafe} memory when its
+ * address is passed to {@code freeMemory} or {@code reallocateMemory}.
+ *
+ * <p>{@code Unsafe} calls are not hooked in JDK classes, whose direct buffers
+ * are already counted where they are allocated.
+ */
+public final class OffHeapRecorder {
+  /** The descriptor passed to samplers for direct buffers. */
+  public static final String DIRECT_BUFFER =
+      "java/nio/ByteBuffer.allocateDirect";
+
+  /** The descriptor passed to samplers for mapped files. */
+  public static final String MAPPED_BUFFER =
+      "java/nio/channels/FileChannel.map";
+
+  /** The descriptor passed to samplers for {@code Unsafe} memory. */
+  public static final String UNSAFE_MEMORY = "sun/misc/Unsafe.allocateMemory";
+
+  // The descriptors as profiles name them.
+  private static final String DIRECT_BUFFER_TYPE =
+      AllocationProfile.typeName(DIRECT_BUFFER, false);
+  private static final String MAPPED_BUFFER_TYPE =
+      AllocationProfile.typeName(MAPPED_BUFFER, false);
+  private static final String UNSAFE_MEMORY_TYPE =
+      AllocationProfile.typeName(UNSAFE_MEMORY, false);
+
+  private static final ConcurrentMap<String, Site> sites =
+      new ConcurrentHashMap<String, Site>();
+  // The Unsafe memory that hasn't been freed yet, by address.
+  private static final ConcurrentMap<Long, Block> blocks =
+      new ConcurrentHashMap<Long, Block>();
+  private static final ReferenceQueue<Object> queue =
+      new ReferenceQueue<Object>();
+  // Keeps the references reachable until their buffers are collected.
+  private static final Set<BufferReference> buffers = Collections.newSetFromMap(
+      new ConcurrentHashMap<BufferReference, Boolean>());
+
+  private OffHeapRecorder() {
+  }
+
+  /**
+   * Returns whether a descriptor passed to samplers is one of these.
+   */
+  static boolean isOffHeap(String desc) {
+    return desc == DIRECT_BUFFER || desc == MAPPED_BUFFER
+        || desc == UNSAFE_MEMORY;
+  }
+
+  /**
+   * Returns whether a type name in a profile, which may have been read back
+   * from a file, names one of these descriptors.
+   */
+  static boolean isOffHeapType(String type) {
+    return type.equals(DIRECT_BUFFER_TYPE) || type.equals(MAPPED_BUFFER_TYPE)
+        || type.equals(UNSAFE_MEMORY_TYPE);
+  }
+
+  /**
+   * Starts the thread that notices collected buffers, and reports the
+   * totals at shutdown.
+   *
+   * @param reportPath the file to write the report to; null means stderr.
+   */
+  static void install(String reportPath) {
+    new AgentThreadFactory("AllocationOffHeapTracker").newThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            drain();
+          }
+        }).start();
+    new ShutdownReport() {
+      @Override
+      void write(PrintStream out) {
+        report(out);
+      }
+    }.writeAtShutdown("AllocationOffHeapReporter", reportPath);
+  }
+
+  /**
+   * Records a buffer returned by {@link ByteBuffer#allocateDirect}.
+   *
+   * @return the buffer.
+   */
+  public static ByteBuffer recordDirectBuffer(ByteBuffer buffer) {
+    record(DIRECT_BUFFER, buffer, buffer.capacity());
+    return buffer;
+  }
+
+  /**
+   * Records a buffer returned by {@code FileChannel.map}.
+   *
+   * @return the buffer.
+   */
+  public static MappedByteBuffer recordMappedBuffer(MappedByteBuffer buffer) {
+    record(MAPPED_BUFFER, buffer, buffer.capacity());
+    return buffer;
+  }
+
+  /**
+   * Records a call to {@code Unsafe.allocateMemory}.
+   *
+   * @param bytes the number of bytes requested.
+   * @param address the address returned.
+   * @return the address.
+   */
+  public static long recordAllocateMemory(long bytes, long address) {
+    Site site = record(UNSAFE_MEMORY, null, bytes);
+    if (site != null && address != 0) {
+      blocks.put(address, new Block(site, bytes));
+    }
+    return address;
+  }
+
+  /**
+   * Records a call to {@code Unsafe.reallocateMemory}, which frees the old
+   * memory and allocates the new memory at the calling site.
+   *
+   * @param newAddress the address returned.
+   * @param address the address passed in.
+   * @param bytes the number of bytes requested.
+   * @return the new address.
+   */
+  public static long recordReallocateMemory(long newAddress, long address,
+      long bytes) {
+    recordFreeMemory(address);
+    return recordAllocateMemory(bytes, newAddress);
+  }
+
+  /**
+   * Records a call to {@code Unsafe.freeMemory}.
+   *
+   * @param address the address passed in.
+   */
+  public static void recordFreeMemory(long address) {
+    if (address == 0) {
+      return;
+    }
+    // The memory may have been allocated while recording, so this doesn't
+    // check whether the thread is recording; it only stops the lookup's
+    // allocations from being recorded.
+    AllocationRecorder.ThreadState state = AllocationRecorder.getThreadState();
+    boolean wasRecording = state.recording;
+    state.recording = true;
+    try {
+      Block block = blocks.remove(address);
+      if (block != null) {
+        block.site.freed.addAndGet(block.bytes);
+      }
+    } finally {
+      state.recording = wasRecording;
+    }
+  }
+
+  // Returns the site the allocation was charged to, or null if it wasn't
+  // recorded.
+  private static Site record(String kind, Object buffer, long bytes) {
+    AllocationRecorder.ThreadState state = AllocationRecorder.getThreadState();
+    if (state.recording) {
+      return null;
+    }
+    state.recording = true;
+    // The samplers that sampleNativeAllocation calls share the stack.
+    StackCapture.beginEvent(state);
+    try {
+      String where = StackCapture.site(StackCapture.capture(1));
+      String key = kind + " " + where;
+      Site site = sites.get(key);
+      if (site == null) {
+        Site newSite = new Site(kind, where);
+        site = sites.putIfAbsent(key, newSite);
+        if (site == null) {
+          site = newSite;
+        }
+      }
+      site.allocations.incrementAndGet();
+      site.allocated.addAndGet(bytes);
+      if (buffer != null) {
+        buffers.add(new BufferReference(buffer, queue, site, bytes));
+      }
+      AllocationRecorder.sampleNativeAllocation(kind, buffer, bytes);
+      return site;
+    } finally {
+      StackCapture.endEvent(state);
+      state.recording = false;
+    }
+  }
+
+  private static void drain() {
+    while (true) {
+      BufferReference ref;
+      try {
+        ref = (BufferReference) queue.remove();
+      } catch (InterruptedException e) {
+        return;
+      }
+      buffers.remove(ref);
+      ref.site.freed.addAndGet(ref.bytes);
+    }
+  }
+
+  /**
+   * Returns the totals for every site seen so far, with the most live
+   * memory first.
+   */
+  public static List<Site> getSites() {
+    List<Site> result = new ArrayList<Site>(sites.values());
+    Collections.sort(result, new Comparator<Site>() {
+      @Override
+      public int compare(Site a, Site b) {
+        long la = a.getLiveBytes();
+        long lb = b.getLiveBytes();
+        return la < lb ? 1 : (la > lb ? -1 : 0);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Prints the totals in a human readable form.
+   */
+  public static void report(PrintStream out) {
+    out.println("Off-heap memory by site (live bytes, allocated bytes, " +
+        "allocations):");
+    for (Site site : getSites()) {
+      out.println(AllocationProfile.typeName(site.getKind(), false) + " at " +
+          site.getSite() + ": " + site.getLiveBytes() + " " +
+          site.getAllocatedBytes() + " " + site.getAllocations());
+    }
+  }
+
+  private static final class Block {
+    final Site site;
+    final long bytes;
+
+    Block(Site site, long bytes) {
+      this.site = site;
+      this.bytes = bytes;
+    }
+  }
+
+  private static final class BufferReference extends PhantomReference<Object> {
+    final Site site;
+    final long bytes;
+
+    BufferReference(Object buffer, ReferenceQueue<Object> queue, Site site,
+        long bytes) {
+      super(buffer, queue);
+      this.site = site;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * The off-heap memory allocated by one kind of call at one site.
+   */
+  public static final class Site {
+    private final String kind;
+    private final String site;
+    final AtomicLong allocations = new AtomicLong();
+    final AtomicLong allocated = new AtomicLong();
+    final AtomicLong freed = new AtomicLong();
+
+    Site(String kind, String site) {
+      this.kind = kind;
+      this.site = site;
+    }
+
+    /**
+     * The kind of allocation: {@link #DIRECT_BUFFER}, {@link #MAPPED_BUFFER}
+     * or {@link #UNSAFE_MEMORY}.
+     */
+    public String getKind() {
+      return kind;
+    }
+
+    /** The allocation site. */
+    public String getSite() {
+      return site;
+    }
+
+    /** The number of allocations made here. */
+    public long getAllocations() {
+      return allocations.get();
+    }
+
+    /** The number of bytes allocated here. */
+    public long getAllocatedBytes() {
+      return allocated.get();
+    }
+
+    /** The number of bytes allocated here that have not been freed. */
+    public long getLiveBytes() {
+      return allocated.get() - freed.get();
+    }
+  }
+}
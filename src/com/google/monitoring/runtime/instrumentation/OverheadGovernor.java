@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Keeps the cost of recording allocations within a budget.  The recorder
+ * times a fraction of the allocations it records, and once a second the
+ * governor compares the time spent recording with the CPU time available to
+ * the process.  This is the cost of printing, sizing and sampling an
+ * allocation; the smaller, fixed cost of the instrumentation's call into the
+ * recorder is paid by every allocation and can only be reduced by raising
+ * the minimum array size.  If recording uses more than its share, or the
+ * collectors report that too much time went into GC, the governor raises the
+ * sampling interval, so that only one in that many allocations above the
+ * minimum array size is recorded; when the pressure goes away, it halves the
+ * interval again.
+ *
+ * <p>Sampled allocations are counted with a {@link #weight()} of the
+ * sampling interval by {@link AllocationProfile}, tags and the other
+ * counters, so their totals stay estimates of the real ones.  Allocation
+ * budgets see every allocation regardless.
+ *
+ * <p>GC time is taken from the collectors' notifications, which are
+ * available on HotSpot JVMs from Java 7 update 4.  Elsewhere the governor
+ * only looks at its own cost.
+ */
+public final class OverheadGovernor {
+  /** How often the governor adjusts the sampling interval. */
+  public static final long PERIOD_MILLIS = 1000;
+
+  /** The largest sampling interval the governor will use. */
+  public static final int MAX_SAMPLING_INTERVAL = 1 << 16;
+
+  // The recorder times one in this many of the allocations it records,
+  // minus one.
+  static final int TIMING_MASK = 63;
+
+  private static final String GC_NOTIFICATION =
+      "com.sun.management.gc.notification";
+
+  private static volatile OverheadGovernor installed;
+
+  // Read by the recorder on every allocation, so these are static.
+  private static volatile int samplingInterval = 1;
+  static volatile boolean timing;
+  private static final AtomicLong timedNanos = new AtomicLong();
+  private static final AtomicLong timedEvents = new AtomicLong();
+
+  private final double cpuBudget;
+  private final double gcBudget;
+  private final int processors = Runtime.getRuntime().availableProcessors();
+  private final AtomicLong gcMillis = new AtomicLong();
+  private volatile double recorderLoad;
+  private volatile double gcLoad;
+  private volatile double eventsPerSecond;
+  private volatile long adjustments;
+
+  private OverheadGovernor(double cpuBudget, double gcBudget) {
+    this.cpuBudget = cpuBudget;
+    this.gcBudget = gcBudget;
+  }
+
+  /**
+   * Returns the governor set up by the agent's arguments, or null if there
+   * isn't one.
+   */
+  public static OverheadGovernor getInstalled() {
+    return installed;
+  }
+
+  /**
+   * Sets up the governor from the agent's arguments.
+   *
+   * @param cpuPercent the share of the machine's CPU time that recording may
+   *   use, in percent.
+   * @param gcPercent the share of wall time spent in GC above which recording
+   *   is throttled, in percent; null means 10.
+   */
+  static void install(String cpuPercent, String gcPercent) {
+    final OverheadGovernor governor = new OverheadGovernor(
+        Double.parseDouble(cpuPercent) / 100,
+        gcPercent == null ? 0.1 : Double.parseDouble(gcPercent) / 100);
+    governor.listenForGc();
+    timing = true;
+    new AgentThreadFactory("AllocationOverheadGovernor").newThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            governor.run();
+          }
+        }).start();
+    installed = governor;
+  }
+
+  /**
+   * Returns the current sampling interval: one in this many allocations that
+   * pass the recorder's filters is recorded.
+   */
+  public static int getSamplingInterval() {
+    return samplingInterval;
+  }
+
+  /**
+   * Returns the number of allocations that a recorded allocation stands for,
+   * which counters multiply it by: while the governor is sampling, it stands
+   * for the ones skipped since the previous one as well.
+   */
+  static int weight() {
+    return samplingInterval;
+  }
+
+  // Sets the sampling interval, for tests.
+  static void setSamplingInterval(int interval) {
+    samplingInterval = interval;
+  }
+
+  /**
+   * Decides whether the recorder should record the current allocation.
+   */
+  static boolean sample(AllocationRecorder.ThreadState state) {
+    int interval = samplingInterval;
+    if (interval == 1) {
+      return true;
+    }
+    if (--state.skip > 0) {
+      return false;
+    }
+    // Random gaps with a mean of the interval, so that allocations that
+    // recur with a fixed period aren't always skipped.
+    state.skip = 1 + ThreadLocalRandom.current().nextInt(2 * interval - 1);
+    return true;
+  }
+
+  /**
+   * Called by the recorder with the time taken by one timed allocation,
+   * which stands for {@code TIMING_MASK + 1} recorded allocations.
+   */
+  static void addTimedNanos(long nanos) {
+    timedNanos.addAndGet(nanos * (TIMING_MASK + 1));
+    timedEvents.addAndGet(TIMING_MASK + 1);
+  }
+
+  /**
+   * Returns the share of the machine's CPU time spent recording allocations
+   * during the last period.
+   */
+  public double getRecorderLoad() {
+    return recorderLoad;
+  }
+
+  /**
+   * Returns the share of wall time spent in GC during the last period.
+   */
+  public double getGcLoad() {
+    return gcLoad;
+  }
+
+  /**
+   * Returns the estimated number of allocations recorded per second during
+   * the last period.
+   */
+  public double getEventsPerSecond() {
+    return eventsPerSecond;
+  }
+
+  /**
+   * Returns the estimated total time spent recording allocations, in
+   * nanoseconds.
+   */
+  public long getRecorderNanos() {
+    return timedNanos.get();
+  }
+
+  /**
+   * Returns the number of times the sampling interval has been changed.
+   */
+  public long getAdjustments() {
+    return adjustments;
+  }
+
+  private void listenForGc() {
+    NotificationListener listener = new NotificationListener() {
+      @Override
+      public void handleNotification(Notification n, Object handback) {
+        if (!GC_NOTIFICATION.equals(n.getType())) {
+          return;
+        }
+        // Notifications are delivered on a JVM thread that may run other
+        // listeners, so recording is only suppressed while this one runs.
+        AllocationRecorder.ThreadState state =
+            AllocationRecorder.getThreadState();
+        boolean wasRecording = state.recording;
+        state.recording = true;
+        try {
+          CompositeData info = (CompositeData) n.getUserData();
+          CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+          gcMillis.addAndGet((Long) gcInfo.get("duration"));
+        } catch (RuntimeException e) {
+          // Not the notification we know; ignore it.
+        } finally {
+          state.recording = wasRecording;
+        }
+      }
+    };
+    for (GarbageCollectorMXBean collector :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (collector instanceof NotificationEmitter) {
+        ((NotificationEmitter) collector).addNotificationListener(
+            listener, null, null);
+      }
+    }
+  }
+
+  private void run() {
+    long lastTime = System.nanoTime();
+    long lastNanos = timedNanos.get();
+    long lastEvents = timedEvents.get();
+    long lastGcMillis = gcMillis.get();
+    while (true) {
+      try {
+        Thread.sleep(PERIOD_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long now = System.nanoTime();
+      long nanos = timedNanos.get();
+      long events = timedEvents.get();
+      long gc = gcMillis.get();
+      double elapsed = now - lastTime;
+      recorderLoad = (nanos - lastNanos) / (elapsed * processors);
+      gcLoad = (gc - lastGcMillis) * 1e6 / elapsed;
+      eventsPerSecond = (events - lastEvents) * 1e9 / elapsed;
+      lastTime = now;
+      lastNanos = nanos;
+      lastEvents = events;
+      lastGcMillis = gc;
+      adjust();
+    }
+  }
+
+  private void adjust() {
+    int interval = samplingInterval;
+    int newInterval = interval;
+    if (recorderLoad > cpuBudget || gcLoad > gcBudget) {
+      // Recording costs about the same per recorded allocation at any
+      // interval, so go straight to one that should fit the budget.
+      long factor = 2;
+      while (factor < recorderLoad / cpuBudget
+          && factor < MAX_SAMPLING_INTERVAL) {
+        factor *= 2;
+      }
+      newInterval = (int) Math.min(interval * factor, MAX_SAMPLING_INTERVAL);
+    } else if (recorderLoad < cpuBudget / 3 && gcLoad < gcBudget / 2) {
+      // Halving the interval roughly doubles the cost, so only relax when
+      // that would still leave some headroom.
+      newInterval = Math.max(interval / 2, 1);
+    }
+    if (newInterval == interval) {
+      return;
+    }
+    samplingInterval = newInterval;
+    adjustments++;
+    AllocationInstrumenter.logger.info(String.format(
+        "Allocation sampling interval %d -> %d (recorder %.2f%% CPU, " +
+        "GC %.2f%%, %.0f recorded allocations/s)", interval, newInterval,
+        recorderLoad * 100, gcLoad * 100, eventsPerSecond));
+  }
+}
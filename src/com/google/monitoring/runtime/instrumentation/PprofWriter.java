@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes an {@link AllocationProfile} in the
+ * <a href="https://github.com/google/pprof/blob/master/proto/profile.proto">
+ * pprof</a> protocol buffer format.  The encoding is done by hand, so that the
+ * agent doesn't need a protocol buffer runtime.  Each sample, location,
+ * function and string is written to the stream as soon as it is needed, so
+ * the whole message is never held in memory.
+ *
+ * <p>Every sample has two values, the number of allocations and the number
+ * of bytes allocated.  The allocated type is written as the innermost frame
+ * of each stack.
+ */
+final class PprofWriter {
+  // Field numbers in perftools.profiles.Profile.
+  private static final int PROFILE_SAMPLE_TYPE = 1;
+  private static final int PROFILE_SAMPLE = 2;
+  private static final int PROFILE_LOCATION = 4;
+  private static final int PROFILE_FUNCTION = 5;
+  private static final int PROFILE_STRING_TABLE = 6;
+  private static final int PROFILE_TIME_NANOS = 9;
+  private static final int PROFILE_DURATION_NANOS = 10;
+  private static final int PROFILE_DEFAULT_SAMPLE_TYPE = 14;
+
+  // Wire types.
+  private static final int VARINT = 0;
+  private static final int LENGTH_DELIMITED = 2;
+
+  private final OutputStream out;
+  private final Map<String, Long> strings = new HashMap<String, Long>();
+  private final Map<String, Long> functions = new HashMap<String, Long>();
+  private final Map<String, Long> locations = new HashMap<String, Long>();
+
+  // Scratch buffers for messages whose length has to be known before they
+  // can be written.
+  private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream nested = new ByteArrayOutputStream();
+
+  private PprofWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Writes the given entries as an (uncompressed) pprof Profile message.
+   *
+   * @param timeNanos the time at which the profile was taken.
+   * @param durationNanos the time over which the allocations were recorded.
+   */
+  static void write(List<AllocationProfile.Entry> entries, long timeNanos,
+      long durationNanos, OutputStream out) throws IOException {
+    PprofWriter writer = new PprofWriter(out);
+    writer.writeHeader(timeNanos, durationNanos);
+    for (AllocationProfile.Entry entry : entries) {
+      writer.writeSample(entry);
+    }
+  }
+
+  private void writeHeader(long timeNanos, long durationNanos)
+      throws IOException {
+    // The string table must start with the empty string.
+    string("");
+    writeValueType(PROFILE_SAMPLE_TYPE, "alloc_objects", "count");
+    long space = writeValueType(PROFILE_SAMPLE_TYPE, "alloc_space", "bytes");
+    writeVarintField(out, PROFILE_DEFAULT_SAMPLE_TYPE, space);
+    writeVarintField(out, PROFILE_TIME_NANOS, timeNanos);
+    writeVarintField(out, PROFILE_DURATION_NANOS, durationNanos);
+  }
+
+  // Returns the string table index of the type.
+  private long writeValueType(int field, String type, String unit)
+      throws IOException {
+    long typeIndex = string(type);
+    long unitIndex = string(unit);
+    message.reset();
+    writeVarintField(message, 1, typeIndex);
+    writeVarintField(message, 2, unitIndex);
+    writeMessage(out, field, message);
+    return typeIndex;
+  }
+
+  private void writeSample(AllocationProfile.Entry entry) throws IOException {
+    StackTraceElement[] stack = entry.stack();
+    long[] locationIds = new long[stack.length + 1];
+    locationIds[0] = location(entry.getTypeName(), "", 0);
+    for (int i = 0; i < stack.length; i++) {
+      StackTraceElement frame = stack[i];
+      locationIds[i + 1] = location(
+          frame.getClassName() + "." + frame.getMethodName(),
+          frame.getFileName() == null ? "" : frame.getFileName(),
+          Math.max(frame.getLineNumber(), 0));
+    }
+
+    message.reset();
+    nested.reset();
+    for (long id : locationIds) {
+      writeVarint(nested, id);
+    }
+    writeMessage(message, 1, nested);
+    nested.reset();
+    writeVarint(nested, entry.getAllocations());
+    writeVarint(nested, entry.getBytes());
+    writeMessage(message, 2, nested);
+    writeMessage(out, PROFILE_SAMPLE, message);
+  }
+
+  // Returns the id of the location for the given line of the given function,
+  // writing the location (and function) if they haven't been written yet.
+  private long location(String function, String file, int line)
+      throws IOException {
+    long functionId = function(function, file);
+    String key = functionId + ":" + line;
+    Long id = locations.get(key);
+    if (id == null) {
+      id = (long) locations.size() + 1;
+      locations.put(key, id);
+      message.reset();
+      writeVarintField(message, 1, id);
+      nested.reset();
+      writeVarintField(nested, 1, functionId);
+      writeVarintField(nested, 2, line);
+      writeMessage(message, 4, nested);
+      writeMessage(out, PROFILE_LOCATION, message);
+    }
+    return id;
+  }
+
+  private long function(String name, String file) throws IOException {
+    String key = name + " " + file;
+    Long id = functions.get(key);
+    if (id == null) {
+      long nameIndex = string(name);
+      long fileIndex = string(file);
+      id = (long) functions.size() + 1;
+      functions.put(key, id);
+      message.reset();
+      writeVarintField(message, 1, id);
+      writeVarintField(message, 2, nameIndex);
+      writeVarintField(message, 3, nameIndex);
+      writeVarintField(message, 4, fileIndex);
+      writeMessage(out, PROFILE_FUNCTION, message);
+    }
+    return id;
+  }
+
+  // Returns the index of the string in the string table, writing it to the
+  // table if it isn't there yet.
+  private long string(String s) throws IOException {
+    Long index = strings.get(s);
+    if (index == null) {
+      index = (long) strings.size();
+      strings.put(s, index);
+      byte[] bytes = s.getBytes("UTF-8");
+      writeVarint(out, (PROFILE_STRING_TABLE << 3) | LENGTH_DELIMITED);
+      writeVarint(out, bytes.length);
+      out.write(bytes);
+    }
+    return index;
+  }
+
+  private static void writeMessage(OutputStream out, int field,
+      ByteArrayOutputStream contents) throws IOException {
+    writeVarint(out, (field << 3) | LENGTH_DELIMITED);
+    writeVarint(out, contents.size());
+    contents.writeTo(out);
+  }
+
+  private static void writeVarintField(OutputStream out, int field,
+      long value) throws IOException {
+    writeVarint(out, (field << 3) | VARINT);
+    writeVarint(out, value);
+  }
+
+  private static void writeVarint(OutputStream out, long value)
+      throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares two {@link ProfileSnapshot}s and fails if allocation at any site
+ * grew by more than a tolerance, for gating builds on allocation
+ * regressions.  Usage:
+ *
+ * <pre>
+ * java -cp allocation.jar \
+ *     com.google.monitoring.runtime.instrumentation.ProfileDiff \
+ *     [--tolerance=PERCENT] [--min-share=PERCENT] [--per=work|second|run] \
+ *     BASELINE CURRENT
+ * </pre>
+ *
+ * <p>Bytes are compared per unit of work counted with
+ * {@link ProfileSnapshot#addWork} if both snapshots have some, and
+ * otherwise per second.  Sites are compared by method, without line
+ * numbers, so that code that merely moved within a method doesn't show up
+ * as a new site.  A site and type regresses if its normalized bytes
+ * grew by more than the tolerance (10% by default), and it accounts for at
+ * least the minimum share (1% by default) of the current snapshot's bytes,
+ * so that small sites don't fail a build on noise.  The exit status is 0 if
+ * nothing regressed, 1 if something did, and 2 if the snapshots couldn't be
+ * compared.
+ */
+public final class ProfileDiff {
+  private double tolerance = 0.1;
+  private double minShare = 0.01;
+  private String per;
+
+  private ProfileDiff() {
+  }
+
+  public static void main(String[] args) {
+    ProfileDiff diff = new ProfileDiff();
+    List<String> paths = new ArrayList<String>();
+    try {
+      for (String arg : args) {
+        if (arg.startsWith("--tolerance=")) {
+          diff.tolerance = percent(arg);
+        } else if (arg.startsWith("--min-share=")) {
+          diff.minShare = percent(arg);
+        } else if (arg.startsWith("--per=")) {
+          diff.per = arg.substring(arg.indexOf('=') + 1);
+        } else {
+          paths.add(arg);
+        }
+      }
+    } catch (NumberFormatException e) {
+      paths.clear();
+    }
+    if (paths.size() != 2 || (diff.per != null && !diff.per.equals("work") &&
+        !diff.per.equals("second") && !diff.per.equals("run"))) {
+      System.err.println("Usage: ProfileDiff [--tolerance=PERCENT] " +
+          "[--min-share=PERCENT] [--per=work|second|run] BASELINE CURRENT");
+      System.exit(2);
+    }
+    try {
+      boolean regressed = diff.compare(ProfileSnapshot.read(paths.get(0)),
+          ProfileSnapshot.read(paths.get(1)));
+      System.exit(regressed ? 1 : 0);
+    } catch (IOException e) {
+      System.err.println("Could not read snapshot: " + e);
+      System.exit(2);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+    }
+  }
+
+  private static double percent(String arg) {
+    return Double.parseDouble(arg.substring(arg.indexOf('=') + 1)) / 100;
+  }
+
+  // Prints the comparison, and returns whether anything regressed.
+  private boolean compare(ProfileSnapshot baseline, ProfileSnapshot current) {
+    String unit = per;
+    if (unit == null) {
+      unit = baseline.getWork() > 0 && current.getWork() > 0 ?
+          "work" : "second";
+    }
+    double baseScale = scale(baseline, unit);
+    double currentScale = scale(current, unit);
+
+    Map<String, double[]> bytes = new HashMap<String, double[]>();
+    Set<String> keys = new LinkedHashSet<String>();
+    double currentTotal = 0;
+    double baseTotal = 0;
+    for (ProfileSnapshot.Entry e : baseline.getEntries()) {
+      String key = e.getType() + " at " + method(e.getSite());
+      keys.add(key);
+      totals(bytes, key)[0] += e.getBytes() * baseScale;
+      baseTotal += e.getBytes() * baseScale;
+    }
+    for (ProfileSnapshot.Entry e : current.getEntries()) {
+      String key = e.getType() + " at " + method(e.getSite());
+      keys.add(key);
+      totals(bytes, key)[1] += e.getBytes() * currentScale;
+      currentTotal += e.getBytes() * currentScale;
+    }
+
+    final Map<String, double[]> b = bytes;
+    List<String> sorted = new ArrayList<String>(keys);
+    Collections.sort(sorted, new Comparator<String>() {
+      @Override
+      public int compare(String x, String y) {
+        return Double.compare(b.get(y)[1] - b.get(y)[0],
+            b.get(x)[1] - b.get(x)[0]);
+      }
+    });
+
+    String units = "bytes/" + unit;
+    System.out.println(String.format("Total: %.1f -> %.1f %s (%s)",
+        baseTotal, currentTotal, units, change(baseTotal, currentTotal)));
+    boolean regressed = false;
+    for (String key : sorted) {
+      double[] t = bytes.get(key);
+      boolean significant = currentTotal > 0 && t[1] / currentTotal >= minShare;
+      if (significant && t[1] > t[0] * (1 + tolerance)) {
+        regressed = true;
+        System.out.println(String.format("REGRESSION %s: %.1f -> %.1f %s (%s)",
+            key, t[0], t[1], units, change(t[0], t[1])));
+      } else if (t[0] > 0 && t[1] < t[0] * (1 - tolerance) &&
+          t[0] / baseTotal >= minShare) {
+        System.out.println(String.format("improvement %s: %.1f -> %.1f %s (%s)",
+            key, t[0], t[1], units, change(t[0], t[1])));
+      }
+    }
+    return regressed;
+  }
+
+  // Returns the class and method of a site such as
+  // "com.example.Foo.bar(Foo.java:12)", without the file and line, or the
+  // class loader and module that Java 9 and later put before the class.
+  static String method(String site) {
+    int paren = site.indexOf('(');
+    String method = paren < 0 ? site : site.substring(0, paren);
+    return method.substring(method.lastIndexOf('/') + 1);
+  }
+
+  private static double[] totals(Map<String, double[]> bytes, String key) {
+    double[] t = bytes.get(key);
+    if (t == null) {
+      t = new double[2];
+      bytes.put(key, t);
+    }
+    return t;
+  }
+
+  // Returns what a snapshot's counts have to be multiplied by to be per unit.
+  private static double scale(ProfileSnapshot snapshot, String unit) {
+    if (unit.equals("work")) {
+      if (snapshot.getWork() <= 0) {
+        throw new IllegalArgumentException(
+            "A snapshot has no work counted; use --per=second or --per=run");
+      }
+      return 1.0 / snapshot.getWork();
+    } else if (unit.equals("second")) {
+      return 1e9 / Math.max(snapshot.getDurationNanos(), 1);
+    }
+    return 1;
+  }
+
+  private static String change(double before, double after) {
+    if (before == 0) {
+      return after == 0 ? "unchanged" : "new";
+    }
+    return String.format("%+.1f%%", (after - before) * 100 / before);
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes an {@link AllocationProfile} to files, on a schedule, at shutdown,
+ * or when {@link #dump()} is called.  Each dump replaces the previous one
+ * with the cumulative profile, and is written to a temporary file that is
+ * then renamed, so readers never see a partial dump.  Dumps only read the
+ * profile's counters, so they don't hold up allocating threads.
+ */
+public class ProfileDumper {
+  private static final Logger logger =
+      Logger.getLogger(ProfileDumper.class.getName());
+
+  /**
+   * The formats a profile can be written in.
+   */
+  public enum Format {
+    /** Gzipped pprof protocol buffer, written to <i>path</i>.pb.gz. */
+    PPROF(".pb.gz"),
+    /** Folded stacks for flame graphs, written to <i>path</i>.collapsed. */
+    COLLAPSED(".collapsed"),
+    /** A {@link ProfileSnapshot}, written to <i>path</i>.snapshot. */
+    SNAPSHOT(".snapshot");
+
+    final String suffix;
+
+    Format(String suffix) {
+      this.suffix = suffix;
+    }
+  }
+
+  private static volatile ProfileDumper installed;
+
+  private final AllocationProfile profile;
+  private final String path;
+  private final Set<Format> formats;
+  private final long startNanos = System.nanoTime();
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param profile the profile to dump.
+   * @param path the path of the files to write, without a suffix.
+   * @param formats the formats to write.
+   */
+  public ProfileDumper(AllocationProfile profile, String path,
+      Set<Format> formats) {
+    this.profile = profile;
+    this.path = path;
+    this.formats = EnumSet.copyOf(formats);
+  }
+
+  /**
+   * Returns the dumper set up by the agent's arguments, or null if there
+   * isn't one.
+   */
+  public static ProfileDumper getInstalled() {
+    return installed;
+  }
+
+  /**
+   * Returns the profile that this dumper writes.
+   */
+  public AllocationProfile getProfile() {
+    return profile;
+  }
+
+  /**
+   * Sets up profiling from the agent's arguments: adds a profile to the
+   * recorder and dumps it to the given path every interval (if it is
+   * positive) and at shutdown.
+   *
+   * @param path the path of the files to write, without a suffix.
+   * @param format "pprof", "collapsed", "snapshot", or several of them
+   *   joined with '+'; "both" means pprof and collapsed, and null means
+   *   pprof.
+   * @param intervalSeconds the time between dumps; null or 0 means only at
+   *   shutdown.
+   * @param maxEntries the number of types and stacks to keep; null means
+   *   all of them.
+   */
+  static void install(String path, String format, String intervalSeconds,
+      String maxEntries) {
+    // Agent arguments are separated by commas, so formats are joined with
+    // '+'.
+    Set<Format> formats = EnumSet.noneOf(Format.class);
+    for (String name : (format == null ? "pprof" : format).split("\\+")) {
+      if (name.equals("pprof")) {
+        formats.add(Format.PPROF);
+      } else if (name.equals("collapsed")) {
+        formats.add(Format.COLLAPSED);
+      } else if (name.equals("snapshot")) {
+        formats.add(Format.SNAPSHOT);
+      } else if (name.equals("both")) {
+        formats.add(Format.PPROF);
+        formats.add(Format.COLLAPSED);
+      } else {
+        throw new IllegalArgumentException("Unknown profile format " + name);
+      }
+    }
+    AllocationProfile profile = maxEntries == null ?
+        new AllocationProfile() :
+        new AllocationProfile(Integer.parseInt(maxEntries));
+    ProfileDumper dumper = new ProfileDumper(profile, path, formats);
+    AllocationRecorder.addSampler(profile);
+    if (intervalSeconds != null && Long.parseLong(intervalSeconds) > 0) {
+      dumper.schedule(Long.parseLong(intervalSeconds), TimeUnit.SECONDS);
+    }
+    dumper.dumpOnShutdown();
+    installed = dumper;
+  }
+
+  /**
+   * Dumps the profile every interval, on a background thread.
+   */
+  public synchronized void schedule(long interval, TimeUnit unit) {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(
+          new AgentThreadFactory("AllocationProfileDumper"));
+    }
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        dumpQuietly();
+      }
+    }, interval, interval, unit);
+  }
+
+  /**
+   * Dumps the profile when the JVM shuts down.
+   */
+  public void dumpOnShutdown() {
+    Runtime.getRuntime().addShutdownHook(
+        new AgentThreadFactory("AllocationProfileShutdownDumper").newThread(
+            new Runnable() {
+              @Override
+              public void run() {
+                dumpQuietly();
+              }
+            }));
+  }
+
+  /**
+   * Writes the profile as it is now, in every configured format.
+   */
+  public synchronized void dump() throws IOException {
+    List<AllocationProfile.Entry> entries = profile.snapshot();
+    long timeNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    long durationNanos = System.nanoTime() - startNanos;
+    for (Format format : formats) {
+      File target = new File(path + format.suffix);
+      File temp = new File(path + format.suffix + ".tmp");
+      OutputStream out =
+          new BufferedOutputStream(new FileOutputStream(temp));
+      try {
+        if (format == Format.PPROF) {
+          GZIPOutputStream gzip = new GZIPOutputStream(out);
+          PprofWriter.write(entries, timeNanos, durationNanos, gzip);
+          gzip.finish();
+        } else if (format == Format.SNAPSHOT) {
+          ProfileSnapshot.of(entries,
+              TimeUnit.NANOSECONDS.toMillis(timeNanos), durationNanos)
+              .write(out);
+        } else {
+          Writer writer = new OutputStreamWriter(out, "UTF-8");
+          CollapsedStackWriter.write(entries, writer);
+          writer.flush();
+        }
+      } finally {
+        out.close();
+      }
+      // File.renameTo won't replace an existing file on every platform.
+      if (!temp.renameTo(target) &&
+          !(target.delete() && temp.renameTo(target))) {
+        throw new IOException("Could not rename " + temp + " to " + target);
+      }
+    }
+  }
+
+  private void dumpQuietly() {
+    try {
+      dump();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to dump allocation profile.", e);
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compact summary of an allocation profile: the number of allocations and
+ * bytes for each allocation site and type, with the time it covers and the
+ * amount of work done in that time.  Snapshots are written by
+ * {@link ProfileDumper} and compared by {@link ProfileDiff}.
+ *
+ * <p>The work is whatever the application counts with {@link #addWork}, for
+ * example requests served, so that two runs that did different amounts of
+ * work can be compared per unit of work.
+ *
+ * <p>The file format is a gzipped stream of a magic number, a version, the
+ * time of the snapshot in milliseconds since the epoch, the duration in
+ * nanoseconds, the work, and the number of entries, followed by the entries,
+ * each a site and a type (both in modified UTF-8, as written by
+ * {@link DataOutputStream#writeUTF}), the allocations and bytes, and the
+ * number of lifetime buckets followed by their counts (see
+ * {@link Entry#getLifetimeMillis}).  Version 1 files,
+ * which have no lifetimes, can still be read.
+ */
+public final class ProfileSnapshot {
+  private static final int MAGIC = 0x414c5053;  // "ALPS"
+  private static final int VERSION = 2;
+
+  private static final long[] NO_LIFETIMES = new long[0];
+
+  private static final AtomicLong work = new AtomicLong();
+
+  private final long timeMillis;
+  private final long durationNanos;
+  private final long workDone;
+  private final List<Entry> entries;
+
+  ProfileSnapshot(long timeMillis, long durationNanos, long workDone,
+      List<Entry> entries) {
+    this.timeMillis = timeMillis;
+    this.durationNanos = durationNanos;
+    this.workDone = workDone;
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Counts work done by the application, such as requests served, which is
+   * saved in snapshots so that they can be compared per unit of work.
+   */
+  public static void addWork(long units) {
+    work.addAndGet(units);
+  }
+
+  /**
+   * Summarizes profile entries by the site at the top of their stacks and
+   * their type, with the work counted so far.
+   */
+  static ProfileSnapshot of(List<AllocationProfile.Entry> profile,
+      long timeMillis, long durationNanos) {
+    Map<String, long[]> lifetimes = new HashMap<String, long[]>();
+    LifetimeSampler sampler = LifetimeSampler.getInstalled();
+    if (sampler != null) {
+      for (LifetimeSampler.Histogram h : sampler.getHistograms()) {
+        long[] millis = h.getMillisCounts();
+        millis = Arrays.copyOf(millis, millis.length + 1);
+        millis[millis.length - 1] = h.getLive();
+        lifetimes.put(h.getSite() + " " + h.getType(), millis);
+      }
+    }
+    Map<String, Entry> bySite = new LinkedHashMap<String, Entry>();
+    for (AllocationProfile.Entry e : profile) {
+      String site = StackCapture.site(e.getStack());
+      String type = e.getTypeName();
+      String key = site + " " + type;
+      Entry entry = bySite.get(key);
+      if (entry == null) {
+        long[] millis = lifetimes.get(key);
+        entry = new Entry(site, type, 0, 0,
+            millis != null ? millis : NO_LIFETIMES);
+        bySite.put(key, entry);
+      }
+      entry.allocations += e.getAllocations();
+      entry.bytes += e.getBytes();
+    }
+    return new ProfileSnapshot(timeMillis, durationNanos, work.get(),
+        new ArrayList<Entry>(bySite.values()));
+  }
+
+  /**
+   * Reads a snapshot from a file.
+   */
+  public static ProfileSnapshot read(String path) throws IOException {
+    InputStream in = new FileInputStream(path);
+    try {
+      return read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a snapshot from a stream.
+   */
+  public static ProfileSnapshot read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(
+        new BufferedInputStream(new GZIPInputStream(in)));
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not an allocation profile snapshot");
+    }
+    int version = data.readInt();
+    if (version != 1 && version != VERSION) {
+      throw new IOException("Unsupported snapshot version " + version);
+    }
+    long timeMillis = data.readLong();
+    long durationNanos = data.readLong();
+    long workDone = data.readLong();
+    int count = data.readInt();
+    List<Entry> entries = new ArrayList<Entry>(count);
+    for (int i = 0; i < count; i++) {
+      String site = data.readUTF();
+      String type = data.readUTF();
+      long allocations = data.readLong();
+      long bytes = data.readLong();
+      long[] millis = NO_LIFETIMES;
+      if (version > 1) {
+        millis = new long[data.readInt()];
+        for (int j = 0; j < millis.length; j++) {
+          millis[j] = data.readLong();
+        }
+      }
+      entries.add(new Entry(site, type, allocations, bytes, millis));
+    }
+    return new ProfileSnapshot(timeMillis, durationNanos, workDone, entries);
+  }
+
+  /**
+   * Writes the snapshot to a stream, which is left open.
+   */
+  public void write(OutputStream out) throws IOException {
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    DataOutputStream data = new DataOutputStream(gzip);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeLong(timeMillis);
+    data.writeLong(durationNanos);
+    data.writeLong(workDone);
+    data.writeInt(entries.size());
+    for (Entry e : entries) {
+      data.writeUTF(e.site);
+      data.writeUTF(e.type);
+      data.writeLong(e.allocations);
+      data.writeLong(e.bytes);
+      data.writeInt(e.lifetimeMillis.length);
+      for (long n : e.lifetimeMillis) {
+        data.writeLong(n);
+      }
+    }
+    data.flush();
+    gzip.finish();
+  }
+
+  /** The time of the snapshot, in milliseconds since the epoch. */
+  public long getTimeMillis() {
+    return timeMillis;
+  }
+
+  /** The time covered by the snapshot, in nanoseconds. */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  /** The work counted with {@link #addWork} before the snapshot. */
+  public long getWork() {
+    return workDone;
+  }
+
+  /** The allocations by site and type. */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * The allocations of one type at one site.
+   */
+  public static final class Entry {
+    private final String site;
+    private final String type;
+    long allocations;
+    long bytes;
+    private final long[] lifetimeMillis;
+
+    Entry(String site, String type, long allocations, long bytes,
+        long[] lifetimeMillis) {
+      this.site = site;
+      this.type = type;
+      this.allocations = allocations;
+      this.bytes = bytes;
+      this.lifetimeMillis = lifetimeMillis;
+    }
+
+    /** The allocation site. */
+    public String getSite() {
+      return site;
+    }
+
+    /** The Java name of the allocated type. */
+    public String getType() {
+      return type;
+    }
+
+    /** The number of allocations. */
+    public long getAllocations() {
+      return allocations;
+    }
+
+    /** The number of bytes allocated. */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * The number of objects sampled by the {@link LifetimeSampler} set up by
+     * the agent's arguments, by lifetime: the counts returned by
+     * {@link LifetimeSampler.Histogram#getMillisCounts} followed by the
+     * number of objects that were still live.  Empty if lifetimes weren't
+     * sampled.
+     */
+    public long[] getLifetimeMillis() {
+      return lifetimeMillis.clone();
+    }
+  }
+}
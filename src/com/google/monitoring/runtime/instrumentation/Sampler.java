@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * This interface describes a function that is used to sample an allocation.
+ * Samplers are added to the recorder with
+ * {@link AllocationRecorder#addSampler(Sampler)}, and are called for every
+ * allocation that passes the recorder's filters.
+ */
+public interface Sampler {
+  /**
+   * Determines whether the object currently being allocated, with the given
+   * size, should be traced.
+   *
+   * <b>CAUTION: DO NOT DO ALLOCATION IN THIS METHOD WITHOUT ENSURING THAT
+   * THE SAMPLER WILL NOT BE INVOKED ON THE RESULTING ALLOCATION.</b>
+   * Otherwise, you will get an infinite regress of calls to the sampler.
+   * Allocations made on the thread that is calling the sampler are not
+   * recorded, so this is only a concern for allocations made on other
+   * threads.
+   *
+   * @param count the int count of how many instances are being allocated, if
+   *   an array is being allocated.  If an array is not being allocated, then
+   *   this value will be -1.
+   * @param desc the descriptor of the class/primitive type being allocated.
+   * @param newObj the new <code>Object</code> whose allocation we're recording.
+   *   For memory outside the heap (see {@link OffHeapRecorder}), this is the
+   *   buffer, or null for memory that doesn't belong to an object.
+   * @param size the size of the object being allocated, in bytes.
+   */
+  void sampleAllocation(int count, String desc, Object newObj, long size);
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Publishes the agent's counters in a memory-mapped file with a fixed
+ * layout, like the JVM's hsperfdata files, when the agent is started with
+ * {@code countersFile=<path>}.  A {@code %p} in the path is replaced with
+ * the process id.  Tools on the same host can read allocation rates by
+ * mapping or reading the file, without any cooperation from the JVM: no
+ * attach, no sockets and no safepoints.  The file is deleted when the JVM
+ * exits normally.
+ *
+ * <p>The file is little-endian, and laid out as follows:
+ *
+ * <pre>
+ * offset  size  contents
+ *      0     4  magic number, 0x414c4354 ("ALCT")
+ *      4     4  version, 1
+ *      8     4  number of counters, n
+ *     12     4  size of a counter, 64
+ *     16     8  process id
+ *     24     8  sequence number, odd while the counters are being written
+ *     32     8  time of the last update, in milliseconds since the epoch
+ *     40    24  reserved
+ *     64  n*64  counters: a name of 56 bytes in US-ASCII, padded with
+ *               zeros, followed by an 8 byte value
+ * </pre>
+ *
+ * <p>The counters are written by a single thread every
+ * {@code countersInterval} milliseconds (1000 by default), with a sequence
+ * lock: the thread makes the sequence number odd, writes the values, and
+ * makes it even again, with a volatile write followed by a volatile read in
+ * between each step, so that no write moves past another step.  The Java
+ * memory model says nothing about readers in other processes, though: the
+ * order is only guaranteed on x86, which doesn't reorder stores, and
+ * elsewhere it relies on HotSpot compiling the pair to a full fence.  A
+ * reader reads the sequence number, then the values, then the sequence
+ * number again, and retries if it changed or was odd, giving up after
+ * {@link #READ_ATTEMPTS} tries.
+ * {@link #read(File)} does this, and {@link #main} prints a file's counters.
+ *
+ * <p>Allocations are counted by a sampler of their own, weighted by the
+ * sampling interval, so the counters are always present; the agent's own
+ * statistics are zero unless it is started with {@code stats=true}.
+ */
+public final class SharedCounters implements Sampler {
+  /** The magic number at the start of the file. */
+  public static final int MAGIC = 0x414c4354;
+
+  /** The version of the layout. */
+  public static final int VERSION = 1;
+
+  /** The default time between updates. */
+  public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+  /**
+   * How many times {@link #read(File)} reads a file that is being updated,
+   * a millisecond apart, before giving up.
+   */
+  public static final int READ_ATTEMPTS = 100;
+
+  private static final int HEADER_SIZE = 64;
+  private static final int COUNTER_SIZE = 64;
+  private static final int NAME_SIZE = 56;
+  private static final int SEQUENCE_OFFSET = 24;
+  private static final int TIME_OFFSET = 32;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  // The counters, in the order they appear in the file.  New counters are
+  // only ever added at the end.
+  private static final String[] NAMES = new String[] {
+    "allocations",
+    "allocation.bytes",
+    "offheap.allocations",
+    "offheap.bytes",
+    "sampling.interval",
+    "heap.used.bytes",
+    "gc.collections",
+    "gc.millis",
+    "agent.classes.transformed",
+    "agent.classes.filtered",
+    "agent.classes.too.long",
+    "agent.classes.failed",
+    "agent.events",
+    "agent.events.below.minimum",
+    "agent.events.reentrant",
+    "agent.stack.captures",
+  };
+
+  private final StripedCounter allocations = new StripedCounter();
+  private final StripedCounter bytes = new StripedCounter();
+  private final StripedCounter offHeapAllocations = new StripedCounter();
+  private final StripedCounter offHeapBytes = new StripedCounter();
+
+  private final MappedByteBuffer buffer;
+  private long sequence;
+  // Written and read between the steps of an update, to keep them in order.
+  private volatile long fence;
+
+  private SharedCounters(MappedByteBuffer buffer, long pid) {
+    this.buffer = buffer;
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(8, NAMES.length);
+    buffer.putInt(12, COUNTER_SIZE);
+    buffer.putLong(16, pid);
+    for (int i = 0; i < NAMES.length; i++) {
+      byte[] name = NAMES[i].getBytes(ASCII);
+      int offset = HEADER_SIZE + i * COUNTER_SIZE;
+      for (int j = 0; j < name.length; j++) {
+        buffer.put(offset + j, name[j]);
+      }
+    }
+  }
+
+  /**
+   * Creates the file and starts publishing the counters.
+   *
+   * @param path the file to create; {@code %p} is replaced with the process
+   *   id.
+   * @param intervalMillis the time between updates; null means 1000.
+   */
+  static void install(String path, String intervalMillis) {
+    String name = ManagementFactory.getRuntimeMXBean().getName();
+    int at = name.indexOf('@');
+    long pid = -1;
+    try {
+      pid = Long.parseLong(at < 0 ? name : name.substring(0, at));
+    } catch (NumberFormatException e) {
+      // Not a HotSpot-style name; the file can still be read.
+    }
+    long parsed = DEFAULT_INTERVAL_MILLIS;
+    if (intervalMillis != null) {
+      try {
+        parsed = Long.parseLong(intervalMillis);
+      } catch (NumberFormatException e) {
+        parsed = -1;
+      }
+      if (parsed <= 0) {
+        System.err.println("countersInterval must be a positive number of " +
+            "milliseconds; using " + DEFAULT_INTERVAL_MILLIS + ".");
+        parsed = DEFAULT_INTERVAL_MILLIS;
+      }
+    }
+    final long interval = parsed;
+    File file = new File(path.replace("%p", Long.toString(pid)));
+    final SharedCounters counters;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        int size = HEADER_SIZE + NAMES.length * COUNTER_SIZE;
+        raf.setLength(size);
+        counters = new SharedCounters(
+            raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size),
+            pid);
+      } finally {
+        // The mapping stays valid after the file is closed.
+        raf.close();
+      }
+    } catch (IOException e) {
+      System.err.println("Could not create " + file + ": " + e);
+      return;
+    }
+    file.deleteOnExit();
+    AllocationRecorder.addSampler(counters);
+    counters.publish();
+    new AgentThreadFactory("AllocationCounterPublisher").newThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            while (true) {
+              try {
+                Thread.sleep(interval);
+              } catch (InterruptedException e) {
+                return;
+              }
+              counters.publish();
+            }
+          }
+        }).start();
+  }
+
+  @Override
+  public void sampleAllocation(int count, String desc, Object newObj,
+      long size) {
+    if (OffHeapRecorder.isOffHeap(desc)) {
+      offHeapAllocations.increment();
+      offHeapBytes.add(size);
+      return;
+    }
+    int weight = OverheadGovernor.weight();
+    allocations.add(weight);
+    bytes.add(weight * size);
+  }
+
+  // Writes the current values.  Only called by one thread at a time.
+  private void publish() {
+    long[] values = collect();
+    buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    fence();
+    for (int i = 0; i < values.length; i++) {
+      buffer.putLong(HEADER_SIZE + i * COUNTER_SIZE + NAME_SIZE, values[i]);
+    }
+    buffer.putLong(TIME_OFFSET, System.currentTimeMillis());
+    fence();
+    buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    fence();
+  }
+
+  // Keeps the writes before it from moving after it, which the volatile
+  // write does, and the writes after it from moving before it, which the
+  // volatile read does.  The value read is used so that the read stays.
+  private void fence() {
+    fence = sequence;
+    sequence = fence;
+  }
+
+  // Returns the values of the counters, in the order of NAMES.
+  private long[] collect() {
+    long collections = 0;
+    long gcMillis = 0;
+    for (GarbageCollectorMXBean collector :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      collections += Math.max(0, collector.getCollectionCount());
+      gcMillis += Math.max(0, collector.getCollectionTime());
+    }
+    return new long[] {
+      allocations.get(),
+      bytes.get(),
+      offHeapAllocations.get(),
+      offHeapBytes.get(),
+      OverheadGovernor.getSamplingInterval(),
+      ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+      collections,
+      gcMillis,
+      AgentStats.getClassesTransformed(),
+      AgentStats.getClassesFiltered(),
+      AgentStats.getClassesFellBack(),
+      AgentStats.getClassesFailed(),
+      AgentStats.getEvents(),
+      AgentStats.getBelowMinimum(),
+      AgentStats.getReentrant(),
+      AgentStats.getStackCaptures(),
+    };
+  }
+
+  /**
+   * Reads the counters from a file written by the agent.  The file is read
+   * again if it was being updated, up to {@link #READ_ATTEMPTS} times.
+   *
+   * @return the counters by name, in the order they appear in the file,
+   *   with "update.millis" and "pid" from the header added at the end.
+   * @throws IOException if the file can't be read or isn't a counters file,
+   *   or if it was still being updated after every attempt.  A writer that
+   *   died mid-update leaves the file that way for good.
+   */
+  public static Map<String, Long> read(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+        if (attempt > 0) {
+          // The writer takes microseconds; wait it out.
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted reading " + file);
+          }
+        }
+        long before = readSequence(raf);
+        byte[] bytes = new byte[(int) raf.length()];
+        raf.seek(0);
+        raf.readFully(bytes);
+        long after = readSequence(raf);
+        if (before == after && (before & 1) == 0) {
+          return parse(file, bytes);
+        }
+      }
+      throw new IOException(file + " is being written or writer died");
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static long readSequence(RandomAccessFile raf) throws IOException {
+    byte[] bytes = new byte[8];
+    raf.seek(SEQUENCE_OFFSET);
+    raf.readFully(bytes);
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  }
+
+  private static Map<String, Long> parse(File file, byte[] bytes)
+      throws IOException {
+    ByteBuffer b = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    if (bytes.length < HEADER_SIZE || b.getInt(0) != MAGIC) {
+      throw new IOException(file + " is not an allocation counters file");
+    }
+    int count = b.getInt(8);
+    int counterSize = b.getInt(12);
+    if (b.getInt(4) != VERSION || counterSize < COUNTER_SIZE ||
+        bytes.length < HEADER_SIZE + (long) count * counterSize) {
+      throw new IOException(file + " has an unknown layout");
+    }
+    Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    for (int i = 0; i < count; i++) {
+      int offset = HEADER_SIZE + i * counterSize;
+      int length = 0;
+      while (length < NAME_SIZE && bytes[offset + length] != 0) {
+        length++;
+      }
+      counters.put(new String(bytes, offset, length, ASCII),
+          b.getLong(offset + NAME_SIZE));
+    }
+    counters.put("update.millis", b.getLong(TIME_OFFSET));
+    counters.put("pid", b.getLong(16));
+    return counters;
+  }
+
+  /**
+   * Prints the counters in the given files.  Usage:
+   *
+   * <pre>
+   * java -cp allocation.jar \
+   *     com.google.monitoring.runtime.instrumentation.SharedCounters FILE...
+   * </pre>
+   */
+  public static void main(String[] args) {
+    int status = 0;
+    for (String path : args) {
+      try {
+        System.out.println(path + ":");
+        for (Map.Entry<String, Long> e : read(new File(path)).entrySet()) {
+          System.out.println("  " + e.getKey() + " " + e.getValue());
+        }
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
+        status = 1;
+      }
+    }
+    System.exit(status);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+/**
+ * A report that the agent writes when the JVM shuts down.
+ */
+abstract class ShutdownReport {
+  /**
+   * Writes the report.
+   */
+  abstract void write(PrintStream out);
+
+  /**
+   * Arranges for the report to be written when the JVM shuts down.
+   *
+   * @param threadName the name of the shutdown hook's thread.
+   * @param path the file to write the report to; null means stderr.
+   */
+  void writeAtShutdown(String threadName, final String path) {
+    Runtime.getRuntime().addShutdownHook(
+        new AgentThreadFactory(threadName).newThread(new Runnable() {
+          @Override
+          public void run() {
+            if (path == null) {
+              write(System.err);
+              return;
+            }
+            try {
+              PrintStream out = new PrintStream(new FileOutputStream(path));
+              try {
+                write(out);
+              } finally {
+                out.close();
+              }
+            } catch (FileNotFoundException e) {
+              System.err.println("Could not write " + path + ": " + e);
+            }
+          }
+        }));
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.Arrays;
+
+/**
+ * Captures the stack of the thread performing an allocation, without the
+ * frames of the agent itself.  Between {@link #beginEvent} and
+ * {@link #endEvent}, the stack is only walked once, however many samplers
+ * ask for it.
+ */
+final class StackCapture {
+  private static final String AGENT_PACKAGE =
+      "com.google.monitoring.runtime.instrumentation.";
+
+  // Prefix of the helper methods added to instrumented classes by
+  // AllocationClassAdapter when outlining.
+  private static final String HELPER_PREFIX = "$allocation$";
+
+  // The stack of an event that hasn't been captured yet.
+  private static final StackTraceElement[] NOT_CAPTURED =
+      new StackTraceElement[0];
+
+  private StackCapture() { }
+
+  /**
+   * Starts an event on the given thread, such as the recording of an
+   * allocation, whose captures share one walk of the stack.
+   */
+  static void beginEvent(AllocationRecorder.ThreadState state) {
+    state.stack = NOT_CAPTURED;
+  }
+
+  /**
+   * Ends the thread's event.
+   */
+  static void endEvent(AllocationRecorder.ThreadState state) {
+    state.stack = null;
+  }
+
+  /**
+   * Returns at most maxDepth frames of the current thread's stack, starting
+   * with the frame that performed the allocation.
+   */
+  static StackTraceElement[] capture(int maxDepth) {
+    AllocationRecorder.ThreadState state = AllocationRecorder.getThreadState();
+    StackTraceElement[] stack = state.stack;
+    if (stack == null || stack == NOT_CAPTURED) {
+      if (AgentStats.enabled) {
+        AgentStats.stackCaptured();
+      }
+      boolean inEvent = stack == NOT_CAPTURED;
+      stack = new Throwable().getStackTrace();
+      if (inEvent) {
+        state.stack = stack;
+      }
+    }
+    int start = 0;
+    while (start < stack.length &&
+        (stack[start].getClassName().startsWith(AGENT_PACKAGE) ||
+         stack[start].getMethodName().startsWith(HELPER_PREFIX))) {
+      start++;
+    }
+    int end = Math.min(stack.length, start + maxDepth);
+    return Arrays.copyOfRange(stack, start, end);
+  }
+
+  /**
+   * Returns a description of the allocation site at the top of the given
+   * stack, or "unknown" if the stack is empty.
+   */
+  static String site(StackTraceElement[] stack) {
+    return stack.length == 0 ? "unknown" : stack[0].toString();
+  }
+}
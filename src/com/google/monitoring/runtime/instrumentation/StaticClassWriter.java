@@ -70,14 +70,29 @@ class StaticClassWriter extends ClassWriter {
   /* The classloader that we use to look for the unloaded class */
   private final ClassLoader classLoader;
 
+  /* Scratch space and the classes looked up so far */
+  private final TransformContext context;
+
   /**
    * {@inheritDoc}
    * @param classLoader the class loader that loaded this class
    */
   public StaticClassWriter(
       ClassReader classReader, int flags, ClassLoader classLoader) {
+    this(classReader, flags, classLoader, new TransformContext());
+  }
+
+  /**
+   * {@inheritDoc}
+   * @param classLoader the class loader that loaded this class
+   * @param context the context of the transformation, which caches the
+   *     classes that are looked up
+   */
+  StaticClassWriter(ClassReader classReader, int flags,
+      ClassLoader classLoader, TransformContext context) {
     super(classReader, flags);
     this.classLoader = classLoader;
+    this.context = context;
   }
 
   /**
@@ -94,8 +109,8 @@ class StaticClassWriter extends ClassWriter {
     // directly from the class file.
     ClassInfo ci1, ci2;
     try {
-      ci1 = new ClassInfo(type1, classLoader);
-      ci2 = new ClassInfo(type2, classLoader);
+      ci1 = context.classInfo(type1, classLoader);
+      ci2 = context.classInfo(type2, classLoader);
     } catch (Throwable e) {
       throw new RuntimeException(e);
     }
@@ -127,11 +142,21 @@ class StaticClassWriter extends ClassWriter {
 
     private final Type type;
     private final ClassLoader loader;
+    private final TransformContext context;
     private final boolean isInterface;
     private final String superClass;
     private final String[] interfaces;
 
+    // Looked up on demand; the hierarchy is walked many times.
+    private ClassInfo superclassInfo;
+    private ClassInfo[] interfaceInfos;
+
     public ClassInfo(String type, ClassLoader loader) {
+      this(type, loader, new TransformContext());
+    }
+
+    ClassInfo(String type, ClassLoader loader, TransformContext context) {
+      this.context = context;
       Class<?> cls = null;
       // First, see if we can extract the information from the class...
       try {
@@ -178,7 +203,7 @@ class StaticClassWriter extends ClassWriter {
 
       int offset = cr.header;
       isInterface = (cr.readUnsignedShort(offset) & Opcodes.ACC_INTERFACE) != 0;
-      char[] buf = new char[2048];
+      char[] buf = context.buffer(cr.getMaxStringLength());
 
       // Read the superclass
       offset += 4;
@@ -212,21 +237,27 @@ class StaticClassWriter extends ClassWriter {
       if (superClass == null) {
         return null;
       }
-      return new ClassInfo(superClass, loader);
+      if (superclassInfo == null) {
+        superclassInfo = context.classInfo(superClass, loader);
+      }
+      return superclassInfo;
     }
 
     /**
      * Same as {@link Class#getInterfaces()}
      */
     ClassInfo[] getInterfaces() {
-      if (interfaces == null) {
-        return new ClassInfo[0];
-      }
-      ClassInfo[] result = new ClassInfo[interfaces.length];
-      for (int i = 0; i < result.length; ++i) {
-        result[i] = new ClassInfo(interfaces[i], loader);
+      if (interfaceInfos == null) {
+        if (interfaces == null) {
+          interfaceInfos = new ClassInfo[0];
+        } else {
+          interfaceInfos = new ClassInfo[interfaces.length];
+          for (int i = 0; i < interfaceInfos.length; ++i) {
+            interfaceInfos[i] = context.classInfo(interfaces[i], loader);
+          }
+        }
       }
-      return result;
+      return interfaceInfos;
     }
 
     /**
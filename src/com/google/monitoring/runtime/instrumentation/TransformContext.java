@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state that {@link AllocationInstrumenter} keeps between the classes
+ * that one thread transforms, so that loading many classes doesn't allocate
+ * the same scratch space over and over.  Each thread has one context, which
+ * is reset between classes.  Transforming a class can load others, so a
+ * transformation that starts while the thread's context is in use gets a
+ * fresh one of its own.
+ */
+final class TransformContext {
+  // Large enough for the names in nearly all class files.
+  private static final int INITIAL_BUFFER_LENGTH = 2048;
+
+  private static final ThreadLocal<TransformContext> current =
+      new ThreadLocal<TransformContext>() {
+        @Override
+        protected TransformContext initialValue() {
+          return new TransformContext();
+        }
+      };
+
+  private boolean inUse;
+  private char[] buffer = new char[INITIAL_BUFFER_LENGTH];
+
+  // The classes that have been looked up while computing frames for the
+  // class being transformed.  Cleared between classes, since classes can be
+  // redefined and loaders can differ.
+  private final Map<String, StaticClassWriter.ClassInfo> classInfos =
+      new HashMap<String, StaticClassWriter.ClassInfo>();
+
+  /**
+   * Returns the current thread's context, or a new one if it is in use.
+   * Must be paired with {@link #release()}.
+   */
+  static TransformContext acquire() {
+    TransformContext context = current.get();
+    if (context.inUse) {
+      return new TransformContext();
+    }
+    context.inUse = true;
+    return context;
+  }
+
+  /**
+   * Resets the context for the next class.
+   */
+  void release() {
+    classInfos.clear();
+    inUse = false;
+  }
+
+  /**
+   * Returns a buffer of at least the given length, for reading strings from
+   * class files.  Its contents are overwritten by the next caller.
+   */
+  char[] buffer(int length) {
+    if (buffer.length < length) {
+      buffer = new char[Math.max(length, buffer.length * 2)];
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns what is known about a class, looking it up the first time it is
+   * asked for while transforming the current class.
+   */
+  StaticClassWriter.ClassInfo classInfo(String type, ClassLoader loader) {
+    StaticClassWriter.ClassInfo info = classInfos.get(type);
+    if (info == null) {
+      info = new StaticClassWriter.ClassInfo(type, loader, this);
+      classInfos.put(type, info);
+    }
+    return info;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link AllocationAssertions}, run without the agent.
+ */
+public class AllocationAssertionsTest extends TestCase {
+  // Keeps allocations from being eliminated by escape analysis.
+  static volatile Object sink;
+
+  private static final Runnable NOTHING = new Runnable() {
+    @Override
+    public void run() {
+      long sum = 0;
+      for (int i = 0; i < 1000; i++) {
+        sum += i * i;
+      }
+      sink = sum == 0 ? null : Boolean.TRUE;
+    }
+  };
+
+  private static final Runnable NEW_OBJECT = new Runnable() {
+    @Override
+    public void run() {
+      sink = new Object();
+    }
+  };
+
+  private static final Runnable NEW_ARRAY = new Runnable() {
+    @Override
+    public void run() {
+      sink = new byte[1000];
+    }
+  };
+
+  @Override
+  protected void setUp() {
+    // The first run loads and links classes, which allocates.
+    NOTHING.run();
+    NEW_OBJECT.run();
+    NEW_ARRAY.run();
+  }
+
+  public void testAllocatesNothing() {
+    AllocationAssertions.assertAllocatesNothing(NOTHING);
+  }
+
+  public void testPlainNewFails() {
+    try {
+      AllocationAssertions.assertAllocatesNothing(NEW_OBJECT);
+    } catch (AssertionError expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().startsWith(
+          "Expected at most 0 bytes to be allocated, but "));
+      return;
+    }
+    throw new AssertionFailedError("new Object() was not seen");
+  }
+
+  public void testWithinBudget() {
+    AllocationAssertions.assertAllocatesAtMost(2000, NEW_ARRAY);
+  }
+
+  public void testOverBudget() {
+    try {
+      AllocationAssertions.assertAllocatesAtMost(500, NEW_ARRAY);
+    } catch (AssertionError expected) {
+      return;
+    }
+    throw new AssertionFailedError("new byte[1000] was not seen");
+  }
+
+  // The inner assertion's own allocations aren't charged to the outer one.
+  public void testNestedAssertionsPass() {
+    AllocationAssertions.assertAllocatesNothing(new Runnable() {
+      @Override
+      public void run() {
+        AllocationAssertions.assertAllocatesNothing(NOTHING);
+      }
+    });
+  }
+
+  // The code's allocations are charged to both.
+  public void testNestedAssertionSeesInnerAllocation() {
+    final boolean[] innerPassed = new boolean[1];
+    try {
+      AllocationAssertions.assertAllocatesNothing(new Runnable() {
+        @Override
+        public void run() {
+          AllocationAssertions.assertAllocatesAtMost(2000, NEW_ARRAY);
+          innerPassed[0] = true;
+        }
+      });
+    } catch (AssertionError expected) {
+      assertTrue(innerPassed[0]);
+      return;
+    }
+    throw new AssertionFailedError("new byte[1000] was not seen");
+  }
+}
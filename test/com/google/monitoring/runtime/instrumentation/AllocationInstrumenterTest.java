@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.TestCase;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tests for {@link AllocationInstrumenter}'s handling of outlined helpers
+ * when classes are retransformed.
+ */
+public class AllocationInstrumenterTest extends TestCase {
+  private static final String NAME = "example/OutlineSample";
+
+  private boolean outlineHelpers;
+
+  @Override
+  protected void setUp() {
+    outlineHelpers = AllocationInstrumenter.outlineHelpers;
+    AllocationInstrumenter.outlineHelpers = true;
+  }
+
+  @Override
+  protected void tearDown() {
+    AllocationInstrumenter.outlineHelpers = outlineHelpers;
+  }
+
+  public void testRetransformKeepsHelpers() throws Exception {
+    byte[] original = sample();
+    AllocationInstrumenter transformer = new AllocationInstrumenter();
+    SampleLoader loader = new SampleLoader();
+    byte[] loaded =
+        transformer.transform(loader, NAME, null, null, original);
+    Set<String> methods = methods(loaded);
+    assertTrue(methods.toString(), methods.contains("$allocation$0"));
+
+    Class<?> c = loader.define(loaded);
+    Object array = c.getMethod("make", int.class).invoke(null, 3);
+    assertEquals(3, ((int[][]) array)[2].length);
+
+    // The JVM passes the class's original bytes to a retransformation.
+    byte[] retransformed =
+        transformer.transform(loader, NAME, c, null, original);
+    assertEquals(methods, methods(retransformed));
+  }
+
+  public void testRetransformOfClassLoadedEarlierAddsNoHelpers()
+      throws Exception {
+    // A class with this name in another loader was loaded before the agent
+    // started, as the classes retransformed at startup are.
+    byte[] retransformed = new AllocationInstrumenter().transform(
+        new SampleLoader(), NAME, Object.class, null, sample());
+    assertEquals(methods(sample()), methods(retransformed));
+  }
+
+  // Returns the names of the class's methods.
+  private static Set<String> methods(byte[] bytes) {
+    final Set<String> methods = new TreeSet<String>();
+    new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM5) {
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String desc,
+          String signature, String[] exceptions) {
+        methods.add(name);
+        return null;
+      }
+    }, 0);
+    return methods;
+  }
+
+  // A class whose only method allocates a square two-dimensional array,
+  // which is instrumented through an outlined helper.
+  private static byte[] sample() {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, NAME, null,
+        "java/lang/Object", null);
+    MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC,
+        "make", "(I)Ljava/lang/Object;", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ILOAD, 0);
+    mv.visitVarInsn(Opcodes.ILOAD, 0);
+    mv.visitMultiANewArrayInsn("[[I", 2);
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static class SampleLoader extends ClassLoader {
+    SampleLoader() {
+      super(AllocationInstrumenterTest.class.getClassLoader());
+    }
+
+    Class<?> define(byte[] bytes) {
+      return defineClass(NAME.replace('/', '.'), bytes, 0, bytes.length);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Tests for {@link AllocationProfile}.
+ */
+public class AllocationProfileTest extends TestCase {
+  public void testTypeNameOfObject() {
+    assertEquals("java.lang.String",
+        AllocationProfile.typeName("java/lang/String", false));
+  }
+
+  public void testTypeNameOfPrimitiveArray() {
+    assertEquals("int[]", AllocationProfile.typeName("int", true));
+    assertEquals("int[]", AllocationProfile.typeName("I", true));
+  }
+
+  public void testTypeNameOfObjectArray() {
+    assertEquals("java.lang.String[]",
+        AllocationProfile.typeName("java/lang/String", true));
+  }
+
+  // anewarray [I, and newarray of the outer dimension of new int[n][m].
+  public void testTypeNameOfArrayOfPrimitiveArrays() {
+    assertEquals("int[][]", AllocationProfile.typeName("[I", true));
+    assertEquals("int[][][]", AllocationProfile.typeName("[[I", true));
+  }
+
+  // Array.newInstance(String[].class, n).
+  public void testTypeNameOfArrayOfObjectArrays() {
+    assertEquals("java.lang.String[][]",
+        AllocationProfile.typeName("[Ljava/lang/String;", true));
+  }
+
+  // The recorder is passed the array's own descriptor for multianewarray.
+  public void testTypeNameOfMultiANewArray() {
+    assertEquals("int[][]",
+        AllocationProfile.typeName(200, "[[I", new int[10][20]));
+  }
+
+  // Clones of multi-dimensional arrays and Array.newInstance(Class, int...)
+  // pass the innermost component type.
+  public void testTypeNameOfReflectiveMultiDimensionalArray() {
+    assertEquals("java.lang.String[][]", AllocationProfile.typeName(
+        6, "java/lang/String", new String[2][3]));
+  }
+
+  // anewarray [Ljava/lang/String; passes the class name.
+  public void testTypeNameOfArrayOfObjectArraysFromAnewarray() {
+    assertEquals("java.lang.String[][]", AllocationProfile.typeName(
+        4, "java/lang/String", new String[4][]));
+  }
+
+  public void testTypeNameWithoutArray() {
+    assertEquals("int[]", AllocationProfile.typeName(4, "int", null));
+    assertEquals("java.lang.Integer",
+        AllocationProfile.typeName(-1, "java/lang/Integer", 1));
+  }
+
+  public void testWeightWhileThrottled() {
+    checkWeightWhileThrottled(new AllocationProfile());
+    checkWeightWhileThrottled(new AllocationProfile(100));
+  }
+
+  // Heap allocations stand for the ones the governor skipped; memory outside
+  // the heap is recorded every time, so it stands for itself.
+  private static void checkWeightWhileThrottled(AllocationProfile profile) {
+    OverheadGovernor.setSamplingInterval(8);
+    try {
+      profile.sampleAllocation(4, "int", new int[4], 32);
+      profile.sampleAllocation(-1, OffHeapRecorder.DIRECT_BUFFER, null, 4096);
+    } finally {
+      OverheadGovernor.setSamplingInterval(1);
+    }
+    List<AllocationProfile.Entry> entries = profile.snapshot();
+    assertEquals(2, entries.size());
+    for (AllocationProfile.Entry e : entries) {
+      if (e.getType().equals(OffHeapRecorder.DIRECT_BUFFER)) {
+        assertEquals(1, e.getAllocations());
+        assertEquals(4096, e.getBytes());
+      } else {
+        assertEquals(8, e.getAllocations());
+        assertEquals(8 * 32, e.getBytes());
+      }
+    }
+  }
+}
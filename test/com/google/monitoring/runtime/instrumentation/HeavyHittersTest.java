@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for {@link HeavyHitters}.  Integer keys hash to themselves, so key
+ * {@code i} lands in stripe {@code i % 16}.
+ */
+public class HeavyHittersTest extends TestCase {
+  public void testReplacementCarriesError() {
+    // One key per stripe; 0, 16 and 32 share stripe 0.
+    HeavyHitters<Integer> hh = new HeavyHitters<Integer>(16);
+    hh.add(0, 1, 5, 0);
+    hh.add(16, 1, 3, 0);
+    hh.add(0, 1, 1, 0);
+
+    List<HeavyHitters.Counter<Integer>> counters = hh.snapshot();
+    assertEquals(1, counters.size());
+    HeavyHitters.Counter<Integer> c = counters.get(0);
+    assertEquals(0, (int) c.key);
+    assertEquals(9, c.weight);
+    assertEquals(8, c.error);
+    assertEquals(3, c.count);
+    assertEquals(9, hh.getErrorBound());
+  }
+
+  public void testExactBelowCapacity() {
+    HeavyHitters<Integer> hh = new HeavyHitters<Integer>(128);
+    for (int i = 0; i < 64; i++) {
+      hh.add(i, 1, i + 1, 2);
+    }
+    List<HeavyHitters.Counter<Integer>> counters = hh.snapshot();
+    assertEquals(64, counters.size());
+    for (HeavyHitters.Counter<Integer> c : counters) {
+      assertEquals(c.key + 1, c.weight);
+      assertEquals(0, c.error);
+    }
+    assertEquals(63, (int) counters.get(0).key);
+    assertEquals(0, hh.getErrorBound());
+  }
+
+  public void testErrorBound() {
+    int capacity = 256;
+    HeavyHitters<Integer> hh = new HeavyHitters<Integer>(capacity);
+    Map<Integer, Long> truth = new HashMap<Integer, Long>();
+    long total = 0;
+    Random random = new Random(42);
+    for (int i = 0; i < 200000; i++) {
+      // A few heavy keys in a long tail of light ones.
+      int key = random.nextInt(10) == 0 ? random.nextInt(8)
+          : 8 + random.nextInt(10000);
+      long weight = key < 8 ? 100 : 1 + random.nextInt(10);
+      hh.add(key, 1, weight, 0);
+      Long t = truth.get(key);
+      truth.put(key, (t == null ? 0 : t) + weight);
+      total += weight;
+    }
+
+    List<HeavyHitters.Counter<Integer>> counters = hh.snapshot();
+    assertTrue(counters.size() <= capacity);
+    Map<Integer, HeavyHitters.Counter<Integer>> monitored =
+        new HashMap<Integer, HeavyHitters.Counter<Integer>>();
+    for (HeavyHitters.Counter<Integer> c : counters) {
+      monitored.put(c.key, c);
+      long t = truth.get(c.key);
+      assertTrue(c.key + ": " + c.weight + " < " + t, c.weight >= t);
+      assertTrue(c.key + ": " + (c.weight - c.error) + " > " + t,
+          c.weight - c.error <= t);
+    }
+    long bound = hh.getErrorBound();
+    // Each stripe monitors capacity / 16 keys, and holds at most the whole
+    // stream, so the bound can't exceed total / (capacity / 16).
+    assertTrue(bound <= total / (capacity / 16));
+    for (Map.Entry<Integer, Long> e : truth.entrySet()) {
+      if (!monitored.containsKey(e.getKey())) {
+        assertTrue(e.getKey() + ": " + e.getValue() + " > " + bound,
+            e.getValue() <= bound);
+      }
+    }
+    for (int key = 0; key < 8; key++) {
+      assertTrue(monitored.containsKey(key));
+      assertTrue(counters.indexOf(monitored.get(key)) < 8);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link PprofWriter}.  The output is decoded with a minimal
+ * protocol buffer reader, and checked against profile.proto.
+ */
+public class PprofWriterTest extends TestCase {
+  private static final StackTraceElement[] STACK = {
+    new StackTraceElement("com.example.Foo", "bar", "Foo.java", 12),
+    new StackTraceElement("com.example.Foo", "main", null, -1),
+  };
+
+  private List<String> strings;
+  private List<Message> sampleTypes;
+  private List<Message> samples;
+  private Map<Long, Message> locations;
+  private Map<Long, Message> functions;
+  private Message profile;
+
+  public void testHeader() throws Exception {
+    write();
+    assertEquals("", strings.get(0));
+    assertEquals(2, sampleTypes.size());
+    assertEquals("alloc_objects", string(sampleTypes.get(0), 1));
+    assertEquals("count", string(sampleTypes.get(0), 2));
+    assertEquals("alloc_space", string(sampleTypes.get(1), 1));
+    assertEquals("bytes", string(sampleTypes.get(1), 2));
+    assertEquals("alloc_space", strings.get((int) profile.varint(14)));
+    assertEquals(1000L, profile.varint(9));
+    assertEquals(300000000000L, profile.varint(10));
+  }
+
+  public void testSample() throws Exception {
+    write(new AllocationProfile.Entry("java/lang/String", true, STACK,
+        3, 30, 1L << 40, 0));
+    assertEquals(1, samples.size());
+    Message sample = samples.get(0);
+    assertEquals(Arrays.asList(3L, 1L << 40), packed(sample.bytes(2)));
+
+    List<Long> ids = packed(sample.bytes(1));
+    assertEquals(3, ids.size());
+    assertLocation(ids.get(0), "java.lang.String[]", "", 0);
+    assertLocation(ids.get(1), "com.example.Foo.bar", "Foo.java", 12);
+    assertLocation(ids.get(2), "com.example.Foo.main", "", 0);
+  }
+
+  public void testLocationsAndStringsAreShared() throws Exception {
+    write(new AllocationProfile.Entry("java/lang/String", true, STACK,
+            1, 1, 24, 0),
+        new AllocationProfile.Entry("int", true, STACK, 1, 1, 24, 0));
+    assertEquals(2, samples.size());
+    assertEquals(4, locations.size());
+    assertEquals(4, functions.size());
+    assertEquals(strings.size(),
+        new java.util.HashSet<String>(strings).size());
+    assertEquals(packed(samples.get(0).bytes(1)).subList(1, 3),
+        packed(samples.get(1).bytes(1)).subList(1, 3));
+  }
+
+  private void assertLocation(long id, String name, String file, long line) {
+    Message location = locations.get(id);
+    assertEquals(id, location.varint(1));
+    Message l = new Message(location.bytes(4));
+    assertEquals(line, l.varint(2));
+    Message function = functions.get(l.varint(1));
+    assertEquals(name, string(function, 2));
+    assertEquals(name, string(function, 3));
+    assertEquals(file, string(function, 4));
+  }
+
+  private void write(AllocationProfile.Entry... entries) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PprofWriter.write(Arrays.asList(entries), 1000, 300000000000L, out);
+    profile = new Message(out.toByteArray());
+    strings = new ArrayList<String>();
+    for (byte[] s : profile.all(6)) {
+      strings.add(new String(s, "UTF-8"));
+    }
+    sampleTypes = messages(profile.all(1));
+    samples = messages(profile.all(2));
+    locations = byId(profile.all(4));
+    functions = byId(profile.all(5));
+  }
+
+  private String string(Message m, int field) {
+    return strings.get((int) m.varint(field));
+  }
+
+  private static List<Message> messages(List<byte[]> encoded) {
+    List<Message> messages = new ArrayList<Message>();
+    for (byte[] b : encoded) {
+      messages.add(new Message(b));
+    }
+    return messages;
+  }
+
+  private static Map<Long, Message> byId(List<byte[]> encoded) {
+    Map<Long, Message> messages = new HashMap<Long, Message>();
+    for (byte[] b : encoded) {
+      Message m = new Message(b);
+      assertNull(messages.put(m.varint(1), m));
+    }
+    return messages;
+  }
+
+  private static List<Long> packed(byte[] b) {
+    List<Long> values = new ArrayList<Long>();
+    int[] pos = {0};
+    while (pos[0] < b.length) {
+      values.add(readVarint(b, pos));
+    }
+    return values;
+  }
+
+  private static long readVarint(byte[] b, int[] pos) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int x = b[pos[0]++] & 0xFF;
+      value |= (long) (x & 0x7F) << shift;
+      if ((x & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /** The fields of an encoded message, by field number. */
+  private static final class Message {
+    private final Map<Integer, List<Object>> fields =
+        new HashMap<Integer, List<Object>>();
+
+    Message(byte[] b) {
+      int[] pos = {0};
+      while (pos[0] < b.length) {
+        long tag = readVarint(b, pos);
+        int field = (int) (tag >>> 3);
+        Object value;
+        switch ((int) (tag & 7)) {
+          case 0:
+            value = readVarint(b, pos);
+            break;
+          case 2:
+            int length = (int) readVarint(b, pos);
+            value = Arrays.copyOfRange(b, pos[0], pos[0] + length);
+            pos[0] += length;
+            break;
+          default:
+            throw new AssertionError("unexpected wire type in tag " + tag);
+        }
+        List<Object> values = fields.get(field);
+        if (values == null) {
+          values = new ArrayList<Object>();
+          fields.put(field, values);
+        }
+        values.add(value);
+      }
+    }
+
+    long varint(int field) {
+      List<Object> values = fields.get(field);
+      return values == null ? 0 : (Long) values.get(0);
+    }
+
+    byte[] bytes(int field) {
+      return (byte[]) fields.get(field).get(0);
+    }
+
+    List<byte[]> all(int field) {
+      List<byte[]> all = new ArrayList<byte[]>();
+      if (fields.containsKey(field)) {
+        for (Object o : fields.get(field)) {
+          all.add((byte[]) o);
+        }
+      }
+      return all;
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.monitoring.runtime.instrumentation;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ProfileDiff}.
+ */
+public class ProfileDiffTest extends TestCase {
+  public void testMethodDropsLine() {
+    assertEquals("com.example.Foo.bar",
+        ProfileDiff.method("com.example.Foo.bar(Foo.java:12)"));
+    assertEquals(ProfileDiff.method("com.example.Foo.bar(Foo.java:12)"),
+        ProfileDiff.method("com.example.Foo.bar(Foo.java:40)"));
+  }
+
+  public void testMethodDropsModule() {
+    assertEquals("java.util.Arrays.copyOf", ProfileDiff.method(
+        "java.base@17.0.9/java.util.Arrays.copyOf(Arrays.java:3537)"));
+    assertEquals("com.example.Foo.bar",
+        ProfileDiff.method("app//com.example.Foo.bar(Foo.java:12)"));
+  }
+
+  public void testMethodOfUnknownSite() {
+    assertEquals("unknown", ProfileDiff.method("unknown"));
+  }
+}